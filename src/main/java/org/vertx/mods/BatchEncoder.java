@@ -0,0 +1,89 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.vertx.mods;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSONSerializers;
+import com.mongodb.util.ObjectSerializer;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.impl.Json;
+
+/**
+ * Encodes a batch of documents straight into a buffer holding the JSON of a batch reply,
+ * <code>{"results":[...],"status":...,"number":...}</code>, without building a <code>JsonObject</code> of each
+ * document and a <code>JsonArray</code> of the batch first.<p>
+ * Documents are encoded the way they would be in a <code>JsonObject</code> reply: with MongoDB types in strict
+ * extended JSON, otherwise as plain JSON. Each document is serialised into a builder which is reused by the thread,
+ * and the buffer starts out at the size of the previous batch, so it rarely has to grow.
+ */
+public class BatchEncoder {
+
+  private static final ObjectSerializer STRICT = JSONSerializers.getStrict();
+
+  private static final ThreadLocal<StringBuilder> BUILDERS = new ThreadLocal<StringBuilder>() {
+    @Override
+    protected StringBuilder initialValue() {
+      return new StringBuilder(1024);
+    }
+  };
+
+  // Builders which have grown past this are dropped after use, so one huge document doesn't pin the memory
+  private static final int MAX_KEPT_BUILDER = 1 << 20;
+
+  private static volatile int sizeHint = 4096;
+
+  private final boolean useMongoTypes;
+  private final Buffer buffer;
+  private int count;
+
+  public BatchEncoder(boolean useMongoTypes) {
+    this.useMongoTypes = useMongoTypes;
+    this.buffer = new Buffer(sizeHint);
+    buffer.appendString("{\"results\":[");
+  }
+
+  public void add(DBObject document) {
+    if (count++ > 0) {
+      buffer.appendString(",");
+    }
+    if (!useMongoTypes) {
+      buffer.appendString(Json.encode(document.toMap()));
+      return;
+    }
+    StringBuilder builder = BUILDERS.get();
+    builder.setLength(0);
+    STRICT.serialize(document, builder);
+    buffer.appendString(builder.toString());
+    if (builder.capacity() > MAX_KEPT_BUILDER) {
+      BUILDERS.remove();
+    }
+  }
+
+  public int size() {
+    return count;
+  }
+
+  /**
+   * @return the reply, which the encoder must not be used after
+   */
+  public Buffer finish(String status) {
+    buffer.appendString("],\"status\":\"").appendString(status).appendString("\",\"number\":")
+        .appendString(Integer.toString(count)).appendString("}");
+    sizeHint = Math.max(1024, buffer.length());
+    return buffer;
+  }
+}
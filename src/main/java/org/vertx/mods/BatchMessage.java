@@ -0,0 +1,209 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.vertx.mods;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * A message which is never sent over the event bus. It wraps a single sub-request of a
+ * <code>batch</code> action so the normal action handlers can run it, and captures the
+ * reply they send so it can be returned as part of the batch reply.<p>
+ * Only the first reply is kept. Any reply handler passed along with it is ignored, so a
+ * find which has more results than fit in one batch will not be continued.
+ */
+public class BatchMessage implements Message<JsonObject> {
+
+  private final JsonObject body;
+  private JsonObject reply;
+
+  public BatchMessage(JsonObject body) {
+    this.body = body;
+  }
+
+  /**
+   * @return the captured reply, or null if the handler didn't reply
+   */
+  public JsonObject getReply() {
+    return reply;
+  }
+
+  @Override
+  public JsonObject body() {
+    return body;
+  }
+
+  @Override
+  public String replyAddress() {
+    return null;
+  }
+
+  @Override
+  public void reply() {
+    capture(new JsonObject());
+  }
+
+  @Override
+  public void reply(Object message) {
+    capture(message);
+  }
+
+  @Override
+  public void reply(JsonObject message) {
+    capture(message);
+  }
+
+  @Override
+  public void reply(JsonArray message) {
+    capture(message);
+  }
+
+  @Override
+  public void reply(String message) {
+    capture(message);
+  }
+
+  @Override
+  public void reply(Buffer message) {
+    capture(message);
+  }
+
+  @Override
+  public void reply(byte[] message) {
+    capture(message);
+  }
+
+  @Override
+  public void reply(Integer message) {
+    capture(message);
+  }
+
+  @Override
+  public void reply(Long message) {
+    capture(message);
+  }
+
+  @Override
+  public void reply(Short message) {
+    capture(message);
+  }
+
+  @Override
+  public void reply(Character message) {
+    capture(message);
+  }
+
+  @Override
+  public void reply(Boolean message) {
+    capture(message);
+  }
+
+  @Override
+  public void reply(Float message) {
+    capture(message);
+  }
+
+  @Override
+  public void reply(Double message) {
+    capture(message);
+  }
+
+  @Override
+  public <T> void reply(Handler<Message<T>> replyHandler) {
+    capture(new JsonObject());
+  }
+
+  @Override
+  public <T> void reply(Object message, Handler<Message<T>> replyHandler) {
+    capture(message);
+  }
+
+  @Override
+  public <T> void reply(JsonObject message, Handler<Message<T>> replyHandler) {
+    capture(message);
+  }
+
+  @Override
+  public <T> void reply(JsonArray message, Handler<Message<T>> replyHandler) {
+    capture(message);
+  }
+
+  @Override
+  public <T> void reply(String message, Handler<Message<T>> replyHandler) {
+    capture(message);
+  }
+
+  @Override
+  public <T> void reply(Buffer message, Handler<Message<T>> replyHandler) {
+    capture(message);
+  }
+
+  @Override
+  public <T> void reply(byte[] message, Handler<Message<T>> replyHandler) {
+    capture(message);
+  }
+
+  @Override
+  public <T> void reply(Integer message, Handler<Message<T>> replyHandler) {
+    capture(message);
+  }
+
+  @Override
+  public <T> void reply(Long message, Handler<Message<T>> replyHandler) {
+    capture(message);
+  }
+
+  @Override
+  public <T> void reply(Short message, Handler<Message<T>> replyHandler) {
+    capture(message);
+  }
+
+  @Override
+  public <T> void reply(Character message, Handler<Message<T>> replyHandler) {
+    capture(message);
+  }
+
+  @Override
+  public <T> void reply(Boolean message, Handler<Message<T>> replyHandler) {
+    capture(message);
+  }
+
+  @Override
+  public <T> void reply(Float message, Handler<Message<T>> replyHandler) {
+    capture(message);
+  }
+
+  @Override
+  public <T> void reply(Double message, Handler<Message<T>> replyHandler) {
+    capture(message);
+  }
+
+  private synchronized void capture(Object message) {
+    if (reply != null) {
+      return;
+    }
+    if (message instanceof JsonObject) {
+      reply = (JsonObject) message;
+    } else {
+      reply = new JsonObject().putString("status", "error")
+          .putString("message", "Unexpected reply type " + (message == null ? "null" : message.getClass().getSimpleName()));
+    }
+  }
+}
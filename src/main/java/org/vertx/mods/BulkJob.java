@@ -0,0 +1,188 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.vertx.mods;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A delete or update of many documents which runs in the background, a chunk of documents at a time.<p>
+ * The job works through the matching documents in <code>_id</code> order, so each document is visited once even if
+ * it still matches after it was updated. Each chunk is selected by the <code>_id</code>s of its documents together
+ * with the matcher, so a document which no longer matches by the time its chunk is written is left alone. Between
+ * chunks the job waits as long as it takes to stay under its rate.
+ */
+public class BulkJob implements Runnable {
+
+  public enum State {QUEUED, RUNNING, DONE, FAILED, CANCELLED}
+
+  private final String id;
+  private final String action;
+  private final String collection;
+  private final DBCollection coll;
+  private final DBObject matcher;
+  private final int chunkSize;
+  private final double docsPerSecond;
+  private final Chunk chunk;
+  private volatile State state = State.QUEUED;
+  private volatile boolean cancelled;
+  private volatile long matched;
+  private volatile long processed;
+  private volatile int chunks;
+  private volatile long started;
+  private volatile long finished;
+  private volatile String error;
+
+  /**
+   * @param chunk writes a chunk of documents, selected by the query it is given
+   */
+  public BulkJob(String id, String action, DBCollection coll, DBObject matcher, JsonObject options, Chunk chunk) {
+    this.id = id;
+    this.action = action;
+    this.collection = coll.getName();
+    this.coll = coll;
+    this.matcher = matcher;
+    this.chunkSize = options.getInteger("chunk_size", 1000);
+    Number rate = options.getNumber("docs_per_second");
+    this.docsPerSecond = rate == null ? 0 : rate.doubleValue();
+    this.chunk = chunk;
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("chunk_size must be positive");
+    }
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * Stops the job before its next chunk. Chunks which have been written stay written.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  public boolean isFinished() {
+    return finished != 0;
+  }
+
+  /**
+   * @return the time the job finished, in milliseconds, or 0 if it hasn't
+   */
+  public long getFinished() {
+    return finished;
+  }
+
+  @Override
+  public void run() {
+    started = System.currentTimeMillis();
+    state = State.RUNNING;
+    long start = System.nanoTime();
+    Object lastId = null;
+    try {
+      while (!cancelled) {
+        List<Object> ids = nextIds(lastId);
+        if (ids.isEmpty()) {
+          break;
+        }
+        lastId = ids.get(ids.size() - 1);
+        matched += ids.size();
+        BasicDBList ands = new BasicDBList();
+        ands.add(matcher);
+        ands.add(new BasicDBObject("_id", new BasicDBObject("$in", ids)));
+        processed += chunk.write(new BasicDBObject("$and", ands));
+        chunks++;
+        if (docsPerSecond > 0) {
+          long due = start + (long) (matched * TimeUnit.SECONDS.toNanos(1) / docsPerSecond);
+          long wait = due - System.nanoTime();
+          if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+          }
+        }
+      }
+      state = cancelled ? State.CANCELLED : State.DONE;
+    } catch (InterruptedException e) {
+      state = State.CANCELLED;
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      error = e.getMessage();
+      state = State.FAILED;
+    } finally {
+      finished = System.currentTimeMillis();
+    }
+  }
+
+  private List<Object> nextIds(Object lastId) {
+    DBObject query = matcher;
+    if (lastId != null) {
+      BasicDBList ands = new BasicDBList();
+      ands.add(matcher);
+      ands.add(new BasicDBObject("_id", new BasicDBObject("$gt", lastId)));
+      query = new BasicDBObject("$and", ands);
+    }
+    List<Object> ids = new ArrayList<>(chunkSize);
+    DBCursor cursor = coll.find(query, new BasicDBObject("_id", 1)).sort(new BasicDBObject("_id", 1)).limit(chunkSize);
+    try {
+      while (cursor.hasNext()) {
+        ids.add(cursor.next().get("_id"));
+      }
+    } finally {
+      cursor.close();
+    }
+    return ids;
+  }
+
+  public JsonObject getStatus() {
+    JsonObject status = new JsonObject()
+        .putString("job_id", id)
+        .putString("action", action)
+        .putString("collection", collection)
+        .putString("state", state.name().toLowerCase())
+        .putNumber("matched", matched)
+        .putNumber("number", processed)
+        .putNumber("chunks", chunks);
+    if (started != 0) {
+      status.putNumber("started", started);
+    }
+    if (finished != 0) {
+      status.putNumber("finished", finished);
+    }
+    if (error != null) {
+      status.putString("message", error);
+    }
+    return status;
+  }
+
+  /**
+   * Writes one chunk of a job
+   */
+  public interface Chunk {
+
+    /**
+     * @return the number of documents deleted or updated
+     */
+    int write(DBObject selector);
+  }
+}
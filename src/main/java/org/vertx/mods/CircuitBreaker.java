@@ -0,0 +1,177 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.vertx.mods;
+
+import com.mongodb.MongoException;
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.MongoServerSelectionException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.MongoWaitQueueFullException;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Stops requests from waiting on MongoDB while it is unreachable.<p>
+ * The breaker counts the requests which failed because MongoDB couldn't be reached or didn't answer in time, over a
+ * sliding window. When the failures reach a share of the requests it opens, and no requests are let through for a
+ * while. After that it is half open: a few probe requests are let through, and the first to finish closes the
+ * breaker again if it succeeded or opens it for another while if it failed.<p>
+ * The times are passed in, in milliseconds, so the breaker doesn't depend on the clock.
+ */
+public class CircuitBreaker {
+
+  public enum State {CLOSED, OPEN, HALF_OPEN}
+
+  private static final int BUCKETS = 10;
+
+  // Not master, and not master or secondary, which is what a member which is stepping down answers
+  private static final int[] FAILOVER_CODES = {10107, 13435, 13436};
+
+  private final long bucketMillis;
+  private final int minRequests;
+  private final double errorRate;
+  private final long openMillis;
+  private final int maxProbes;
+
+  private final long[] bucketStarts = new long[BUCKETS];
+  private final int[] requests = new int[BUCKETS];
+  private final int[] failures = new int[BUCKETS];
+  private State state = State.CLOSED;
+  private long openedAt;
+  private int probes;
+  private long rejected;
+
+  public CircuitBreaker(JsonObject config) {
+    this.bucketMillis = Math.max(1, config.getLong("window_ms", 10000) / BUCKETS);
+    this.minRequests = config.getInteger("min_requests", 20);
+    Number rate = config.getNumber("error_rate");
+    this.errorRate = rate == null ? 0.5 : rate.doubleValue();
+    this.openMillis = config.getLong("open_ms", 5000);
+    this.maxProbes = config.getInteger("half_open_probes", 1);
+  }
+
+  /**
+   * @return true if a request may go to MongoDB. While half open this lets a request through as a probe, which
+   * must be followed by a call to {@link #onSuccess(long)}, {@link #onFailure(long)} or {@link #onAbandoned()}.
+   */
+  public synchronized boolean allowRequest(long now) {
+    if (state == State.OPEN && now - openedAt >= openMillis) {
+      state = State.HALF_OPEN;
+      probes = 0;
+    }
+    if (state == State.CLOSED || state == State.HALF_OPEN && probes < maxProbes) {
+      if (state == State.HALF_OPEN) {
+        probes++;
+      }
+      return true;
+    }
+    rejected++;
+    return false;
+  }
+
+  public synchronized void onSuccess(long now) {
+    if (state == State.HALF_OPEN) {
+      close();
+      return;
+    }
+    count(now, false);
+  }
+
+  /**
+   * Records a request which ended before it could tell whether MongoDB is back, such as one which was invalid. A
+   * probe is given back, so the next request is let through in its place.
+   */
+  public synchronized void onAbandoned() {
+    if (state == State.HALF_OPEN && probes > 0) {
+      probes--;
+    }
+  }
+
+  public synchronized void onFailure(long now) {
+    if (state == State.HALF_OPEN) {
+      open(now);
+      return;
+    }
+    if (state == State.OPEN) {
+      return;
+    }
+    count(now, true);
+    int total = 0;
+    int failed = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      if (now - bucketStarts[i] < bucketMillis * BUCKETS) {
+        total += requests[i];
+        failed += failures[i];
+      }
+    }
+    if (total >= minRequests && failed >= errorRate * total) {
+      open(now);
+    }
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  public synchronized JsonObject getStats() {
+    return new JsonObject().putString("state", state.name().toLowerCase()).putNumber("rejected", rejected);
+  }
+
+  /**
+   * @return true if the exception means MongoDB couldn't be reached, or didn't answer in time
+   */
+  public static boolean isOutage(MongoException e) {
+    // MongoSocketException covers the deprecated MongoException.Network, which extends it
+    if (e instanceof MongoSocketException || e instanceof MongoTimeoutException || e instanceof MongoServerSelectionException
+        || e instanceof MongoWaitQueueFullException || e instanceof MongoExecutionTimeoutException) {
+      return true;
+    }
+    for (int code : FAILOVER_CODES) {
+      if (e.getCode() == code) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void count(long now, boolean failed) {
+    long start = now - now % bucketMillis;
+    int bucket = (int) ((now / bucketMillis) % BUCKETS);
+    if (bucketStarts[bucket] != start) {
+      bucketStarts[bucket] = start;
+      requests[bucket] = 0;
+      failures[bucket] = 0;
+    }
+    requests[bucket]++;
+    if (failed) {
+      failures[bucket]++;
+    }
+  }
+
+  private void open(long now) {
+    state = State.OPEN;
+    openedAt = now;
+  }
+
+  private void close() {
+    state = State.CLOSED;
+    for (int i = 0; i < BUCKETS; i++) {
+      requests[i] = 0;
+      failures[i] = 0;
+    }
+  }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.vertx.mods;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * Routes a logical collection to physical collections, one per time bucket, based on a date field of the
+ * documents. For example with daily buckets a document in <code>events</code> with a <code>ts</code> of
+ * 2014-10-17 is stored in <code>events_2014_10_17</code>.<p>
+ * Please see the README.md for the configuration
+ */
+public class CollectionRouter {
+
+  private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+  private static final String[] DATE_FORMATS = {
+      "yyyy-MM-dd'T'HH:mm:ss.SSSXXX", "yyyy-MM-dd'T'HH:mm:ssXXX", "yyyy-MM-dd'T'HH:mm:ss.SSS", "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd"
+  };
+
+  private final Map<String, Rule> rules = new HashMap<>();
+
+  public CollectionRouter(JsonObject config) {
+    for (String collection : config.getFieldNames()) {
+      rules.put(collection, new Rule(collection, config.getObject(collection)));
+    }
+  }
+
+  public Set<String> getCollections() {
+    return Collections.unmodifiableSet(rules.keySet());
+  }
+
+  public boolean isRouted(String collection) {
+    return collection != null && rules.containsKey(collection);
+  }
+
+  /**
+   * @return the name of the bucket the document belongs in, or null if it has no valid date in the routing field
+   */
+  public String getBucket(String collection, JsonObject document) {
+    Rule rule = rules.get(collection);
+    Long time = toMillis(document.getField(rule.dateField));
+    return time == null ? null : rule.bucketName(time);
+  }
+
+  /**
+   * @return the routed collection the bucket belongs to, or null if it isn't a bucket
+   */
+  public String getRoutedCollection(String bucket) {
+    for (Rule rule : rules.values()) {
+      if (rule.parseBucket(bucket) != null) {
+        return rule.collection;
+      }
+    }
+    return null;
+  }
+
+  public String getDateField(String collection) {
+    return rules.get(collection).dateField;
+  }
+
+  /**
+   * Works out which of the existing buckets a query needs to look at. If the matcher restricts the routing field
+   * to a range, only buckets overlapping the range are returned, otherwise all of them are.
+   *
+   * @return the bucket names, oldest first
+   */
+  public List<String> getBuckets(String collection, JsonObject matcher, Collection<String> existing) {
+    Rule rule = rules.get(collection);
+    long from = Long.MIN_VALUE;
+    long to = Long.MAX_VALUE;
+    Object condition = matcher == null ? null : matcher.getField(rule.dateField);
+    if (condition != null) {
+      Long exact = toMillis(condition);
+      if (exact != null) {
+        from = exact;
+        to = exact;
+      } else if (condition instanceof JsonObject) {
+        JsonObject range = (JsonObject) condition;
+        Long lower = toMillis(range.getField("$gte") != null ? range.getField("$gte") : range.getField("$gt"));
+        Long upper = toMillis(range.getField("$lte") != null ? range.getField("$lte") : range.getField("$lt"));
+        if (lower != null) {
+          from = lower;
+        }
+        if (upper != null) {
+          to = upper;
+        }
+      }
+    }
+    long firstBucket = from == Long.MIN_VALUE ? from : rule.bucketStart(from);
+
+    List<String> buckets = new ArrayList<>();
+    for (String name : existing) {
+      Long start = rule.parseBucket(name);
+      if (start != null && start >= firstBucket && start <= to) {
+        buckets.add(name);
+      }
+    }
+    Collections.sort(buckets);
+    return buckets;
+  }
+
+  /**
+   * @return the current bucket and the ones after it which should be prepared ahead of time
+   */
+  public List<String> getUpcomingBuckets(String collection, long now) {
+    Rule rule = rules.get(collection);
+    List<String> buckets = new ArrayList<>();
+    Calendar calendar = rule.calendar(now);
+    for (int i = 0; i <= rule.precreate; i++) {
+      buckets.add(rule.bucketName(calendar.getTimeInMillis()));
+      calendar.add(rule.granularity.field, 1);
+    }
+    return buckets;
+  }
+
+  /**
+   * @return the existing buckets which are older than the retention allows
+   */
+  public List<String> getExpiredBuckets(String collection, Collection<String> existing, long now) {
+    Rule rule = rules.get(collection);
+    List<String> expired = new ArrayList<>();
+    if (rule.retention <= 0) {
+      return expired;
+    }
+    Calendar calendar = rule.calendar(now);
+    calendar.add(rule.granularity.field, -(rule.retention - 1));
+    long oldestKept = calendar.getTimeInMillis();
+    for (String name : existing) {
+      Long start = rule.parseBucket(name);
+      if (start != null && start < oldestKept) {
+        expired.add(name);
+      }
+    }
+    return expired;
+  }
+
+  /**
+   * @return the index specs to create on each bucket, never null
+   */
+  public JsonArray getIndexes(String collection) {
+    return rules.get(collection).indexes;
+  }
+
+  /**
+   * Reads a date in any of the forms a document might hold one in: a number of milliseconds since the epoch,
+   * an ISO-8601 string, or a <code>{"$date": ...}</code> object as used with use_mongo_types
+   *
+   * @return the date in milliseconds since the epoch, or null if the value isn't a date
+   */
+  static Long toMillis(Object value) {
+    if (value instanceof JsonObject) {
+      Object date = ((JsonObject) value).getField("$date");
+      return date == null ? null : toMillis(date);
+    } else if (value instanceof Number) {
+      return ((Number) value).longValue();
+    } else if (value instanceof Date) {
+      return ((Date) value).getTime();
+    } else if (value instanceof String) {
+      for (String format : DATE_FORMATS) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat(format);
+        dateFormat.setTimeZone(UTC);
+        dateFormat.setLenient(false);
+        try {
+          return dateFormat.parse((String) value).getTime();
+        } catch (ParseException ignore) {
+        }
+      }
+    }
+    return null;
+  }
+
+  private enum Granularity {
+    HOUR("yyyy_MM_dd_HH", Calendar.HOUR_OF_DAY),
+    DAY("yyyy_MM_dd", Calendar.DAY_OF_MONTH),
+    MONTH("yyyy_MM", Calendar.MONTH);
+
+    final String pattern;
+    final int field;
+
+    Granularity(String pattern, int field) {
+      this.pattern = pattern;
+      this.field = field;
+    }
+  }
+
+  private static class Rule {
+    final String collection;
+    final String dateField;
+    final Granularity granularity;
+    final int retention;
+    final int precreate;
+    final JsonArray indexes;
+
+    Rule(String collection, JsonObject config) {
+      this.collection = collection;
+      this.dateField = config.getString("date_field");
+      if (dateField == null) {
+        throw new IllegalArgumentException("routing for " + collection + " must specify date_field");
+      }
+      this.granularity = Granularity.valueOf(config.getString("bucket", "day").toUpperCase());
+      this.retention = config.getInteger("retention", 0);
+      this.precreate = config.getInteger("precreate", 1);
+      this.indexes = config.getArray("indexes", new JsonArray());
+    }
+
+    Calendar calendar(long time) {
+      Calendar calendar = Calendar.getInstance(UTC);
+      calendar.setTimeInMillis(time);
+      if (granularity == Granularity.MONTH) {
+        calendar.set(Calendar.DAY_OF_MONTH, 1);
+      }
+      if (granularity != Granularity.HOUR) {
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+      }
+      calendar.set(Calendar.MINUTE, 0);
+      calendar.set(Calendar.SECOND, 0);
+      calendar.set(Calendar.MILLISECOND, 0);
+      return calendar;
+    }
+
+    long bucketStart(long time) {
+      return calendar(time).getTimeInMillis();
+    }
+
+    String bucketName(long time) {
+      return collection + "_" + dateFormat().format(new Date(time));
+    }
+
+    Long parseBucket(String name) {
+      String prefix = collection + "_";
+      if (!name.startsWith(prefix) || name.length() != prefix.length() + granularity.pattern.length()) {
+        return null;
+      }
+      try {
+        return dateFormat().parse(name.substring(prefix.length())).getTime();
+      } catch (ParseException e) {
+        return null;
+      }
+    }
+
+    private SimpleDateFormat dateFormat() {
+      SimpleDateFormat dateFormat = new SimpleDateFormat(granularity.pattern);
+      dateFormat.setTimeZone(UTC);
+      dateFormat.setLenient(false);
+      return dateFormat;
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.vertx.mods;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, least recently used cache of the values of <code>distinct</code> requests, for lookups such as the
+ * choices of a drop-down which are asked for far more often than they change.<p>
+ * Entries live for a short time only, since writes by other nodes aren't seen. Writes made through this module
+ * evict the entries of their collection straight away. Only small results are cached.
+ */
+public class DistinctCache {
+
+  private final long ttl;
+  private final int maxValues;
+  private final Map<String, Cached> entries;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  public DistinctCache(JsonObject config) {
+    this.ttl = config.getLong("ttl_ms", 5000);
+    this.maxValues = config.getInteger("max_values", 1000);
+    final int maxEntries = config.getInteger("max_entries", 1000);
+    this.entries = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  public static String key(String collection, String field, JsonObject matcher) {
+    return collection + '\u0000' + field + '\u0000' + (matcher == null ? "{}" : matcher.encode());
+  }
+
+  /**
+   * @return the cached values, which must not be changed, or null if they aren't cached or have expired
+   */
+  public synchronized List<?> get(String key, long now) {
+    Cached entry = entries.get(key);
+    if (entry == null || entry.expires <= now) {
+      if (entry != null) {
+        entries.remove(key);
+      }
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return entry.values;
+  }
+
+  /**
+   * Caches the values, unless there are more than max_values of them
+   */
+  public synchronized void put(String key, List<?> values, long now) {
+    if (values.size() <= maxValues) {
+      entries.put(key, new Cached(values, now + ttl));
+    }
+  }
+
+  public synchronized void invalidate(String collection) {
+    String prefix = collection + '\u0000';
+    Iterator<String> keys = entries.keySet().iterator();
+    while (keys.hasNext()) {
+      if (keys.next().startsWith(prefix)) {
+        keys.remove();
+      }
+    }
+  }
+
+  public synchronized JsonObject getStats() {
+    return new JsonObject()
+        .putNumber("entries", entries.size())
+        .putNumber("hits", hits.get())
+        .putNumber("misses", misses.get());
+  }
+
+  private static class Cached {
+    private final List<?> values;
+    private final long expires;
+
+    Cached(List<?> values, long expires) {
+      this.values = values;
+      this.expires = expires;
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.vertx.mods;
+
+import org.bson.types.ObjectId;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates the <code>_id</code> of saved documents which don't have one.<p>
+ * The generated value is in the JSON form the document is sent with, so it can be put straight into the
+ * document and the reply.
+ */
+public abstract class IdGenerator {
+
+  /**
+   * @param name one of <code>uuid</code>, <code>objectid</code> or <code>sequential</code>
+   * @param useMongoTypes whether documents are converted with mongo types, which objectid needs
+   */
+  public static IdGenerator create(String name, boolean useMongoTypes) {
+    switch (name) {
+      case "uuid":
+        return new UuidGenerator();
+      case "objectid":
+        if (!useMongoTypes) {
+          throw new IllegalArgumentException("id_generator objectid needs use_mongo_types to be enabled");
+        }
+        return new ObjectIdGenerator();
+      case "sequential":
+        return new SequentialGenerator();
+      default:
+        throw new IllegalArgumentException("Invalid id_generator: " + name);
+    }
+  }
+
+  /**
+   * @return a new id, either a String or a JsonObject
+   */
+  public abstract Object generate();
+
+  /**
+   * Random UUID strings, which is what the module has always generated
+   */
+  private static class UuidGenerator extends IdGenerator {
+    @Override
+    public Object generate() {
+      return UUID.randomUUID().toString();
+    }
+  }
+
+  /**
+   * Native ObjectIds, in their strict JSON form of <code>{"$oid": "..."}</code>
+   */
+  private static class ObjectIdGenerator extends IdGenerator {
+    @Override
+    public Object generate() {
+      return new JsonObject().putString("$oid", new ObjectId().toHexString());
+    }
+  }
+
+  /**
+   * 24 character hex strings which sort in the order they were generated. The first 16 characters are the time
+   * in milliseconds followed by a counter, which never goes backwards within this generator, and the last 8 are
+   * picked at random when the generator is created so ids from different instances don't clash.
+   */
+  private static class SequentialGenerator extends IdGenerator {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final AtomicLong last = new AtomicLong();
+    private final int suffix = new Random().nextInt();
+
+    @Override
+    public Object generate() {
+      long candidate = System.currentTimeMillis() << 16;
+      long next;
+      while (true) {
+        long previous = last.get();
+        next = candidate > previous ? candidate : previous + 1;
+        if (last.compareAndSet(previous, next)) {
+          break;
+        }
+      }
+      char[] id = new char[24];
+      for (int i = 15; i >= 0; i--) {
+        id[i] = HEX[(int) (next & 0xf)];
+        next >>>= 4;
+      }
+      int random = suffix;
+      for (int i = 23; i >= 16; i--) {
+        id[i] = HEX[random & 0xf];
+        random >>>= 4;
+      }
+      return new String(id);
+    }
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.vertx.mods;
+
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Collects <code>$inc</code> updates of a single document by <code>_id</code> so that all the updates of the same
+ * document which arrive within a short window can be written as one update carrying the summed increments.<p>
+ * The combiner only does the bookkeeping. The persistor writes each combined update and replies to the messages
+ * of the updates it is made of.
+ */
+public class IncCombiner {
+
+  private final Set<String> collections = new HashSet<>();
+  private final ConcurrentMap<String, Combined> pending = new ConcurrentHashMap<>();
+
+  public IncCombiner(JsonArray collections) {
+    for (Object collection : collections) {
+      this.collections.add((String) collection);
+    }
+  }
+
+  /**
+   * An update can only be combined if it is an <code>$inc</code> of numbers, and nothing else, on a single
+   * document matched by its <code>_id</code> alone
+   */
+  public boolean canCombine(String collection, JsonObject criteria, JsonObject objNew, boolean multi) {
+    if (multi || !collections.contains(collection)) {
+      return false;
+    }
+    if (criteria.size() != 1 || criteria.getField("_id") == null) {
+      return false;
+    }
+    if (objNew.size() != 1 || objNew.getObject("$inc") == null) {
+      return false;
+    }
+    JsonObject inc = objNew.getObject("$inc");
+    for (String field : inc.getFieldNames()) {
+      if (!(inc.getField(field) instanceof Number)) {
+        return false;
+      }
+    }
+    return inc.size() > 0;
+  }
+
+  /**
+   * Adds an update to the pending update of its document
+   *
+   * @return the key of the pending update if this update started it, in which case the caller must arrange for
+   * {@link #take(String)} to be called with it once the window has passed, otherwise null
+   */
+  public String add(String collection, JsonObject criteria, JsonObject objNew, boolean upsert, Message<JsonObject> message) {
+    Object id = criteria.getField("_id");
+    String key = collection + '\u0000' + upsert + '\u0000' + new JsonObject().putValue("_id", id).encode();
+    while (true) {
+      Combined combined = pending.get(key);
+      boolean created = false;
+      if (combined == null) {
+        combined = new Combined(collection, id, upsert);
+        Combined existing = pending.putIfAbsent(key, combined);
+        if (existing != null) {
+          combined = existing;
+        } else {
+          created = true;
+        }
+      }
+      synchronized (combined) {
+        if (combined.taken) {
+          // It is being written right now, start a new one
+          continue;
+        }
+        combined.add(objNew.getObject("$inc"), message);
+      }
+      return created ? key : null;
+    }
+  }
+
+  /**
+   * Removes a pending update so it can be written. No more updates are added to it after this returns.
+   */
+  public Combined take(String key) {
+    Combined combined = pending.remove(key);
+    if (combined != null) {
+      synchronized (combined) {
+        combined.taken = true;
+      }
+    }
+    return combined;
+  }
+
+  /**
+   * Removes all the pending updates, for example so they can be written before shutting down
+   */
+  public List<Combined> takeAll() {
+    List<Combined> taken = new ArrayList<>();
+    for (String key : pending.keySet()) {
+      Combined combined = take(key);
+      if (combined != null) {
+        taken.add(combined);
+      }
+    }
+    return taken;
+  }
+
+  public static class Combined {
+    private final String collection;
+    private final Object id;
+    private final boolean upsert;
+    private final Map<String, Number> increments = new LinkedHashMap<>();
+    private final List<Message<JsonObject>> messages = new ArrayList<>();
+    private boolean taken;
+
+    Combined(String collection, Object id, boolean upsert) {
+      this.collection = collection;
+      this.id = id;
+      this.upsert = upsert;
+    }
+
+    private void add(JsonObject inc, Message<JsonObject> message) {
+      for (String field : inc.getFieldNames()) {
+        increments.put(field, sum(increments.get(field), (Number) inc.getField(field)));
+      }
+      messages.add(message);
+    }
+
+    public String getCollection() {
+      return collection;
+    }
+
+    public JsonObject getCriteria() {
+      return new JsonObject().putValue("_id", id);
+    }
+
+    public JsonObject getObjNew() {
+      JsonObject inc = new JsonObject();
+      for (Map.Entry<String, Number> increment : increments.entrySet()) {
+        inc.putNumber(increment.getKey(), increment.getValue());
+      }
+      return new JsonObject().putObject("$inc", inc);
+    }
+
+    public boolean isUpsert() {
+      return upsert;
+    }
+
+    public List<Message<JsonObject>> getMessages() {
+      return messages;
+    }
+
+    // Keep the type of the increments where we can, an int $inc must not turn the field into a long
+    private static Number sum(Number total, Number value) {
+      if (total == null) {
+        return value;
+      }
+      if (isIntegral(total) && isIntegral(value)) {
+        long sum = total.longValue() + value.longValue();
+        if (total instanceof Integer && value instanceof Integer && sum >= Integer.MIN_VALUE && sum <= Integer.MAX_VALUE) {
+          return (int) sum;
+        }
+        return sum;
+      }
+      return total.doubleValue() + value.doubleValue();
+    }
+
+    private static boolean isIntegral(Number n) {
+      return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+    }
+  }
+}
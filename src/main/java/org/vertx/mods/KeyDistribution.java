@@ -0,0 +1,145 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.vertx.mods;
+
+import java.util.Random;
+
+/**
+ * Chooses which of the records of a load test an operation goes to, the way YCSB does:
+ * <ul>
+ * <li><code>uniform</code> every record is as likely as any other</li>
+ * <li><code>zipfian</code> a few records are chosen far more often than the rest, as with popular items</li>
+ * <li><code>latest</code> the records inserted most recently are chosen most often, as with new posts</li>
+ * </ul>
+ * Records are numbered from 0 in the order they were inserted.
+ */
+public abstract class KeyDistribution {
+
+  private static final double ZIPFIAN_CONSTANT = 0.99;
+
+  protected final Random random;
+
+  protected KeyDistribution(Random random) {
+    this.random = random;
+  }
+
+  /**
+   * @param records the number of records there are to begin with
+   */
+  public static KeyDistribution create(String name, long records, Random random) {
+    switch (name) {
+      case "uniform":
+        return new Uniform(random);
+      case "zipfian":
+        return new Zipfian(records, random);
+      case "latest":
+        return new Latest(records, random);
+      default:
+        throw new IllegalArgumentException("Unknown key distribution: " + name);
+    }
+  }
+
+  /**
+   * @param records the number of records there are now, which grows as records are inserted
+   * @return the number of a record, from 0 to records - 1
+   */
+  public abstract long next(long records);
+
+  private static class Uniform extends KeyDistribution {
+
+    Uniform(Random random) {
+      super(random);
+    }
+
+    @Override
+    public long next(long records) {
+      return (long) (random.nextDouble() * records);
+    }
+  }
+
+  /**
+   * Picks ranks from 0 to items - 1, rank 0 the most often, after "Quickly Generating Billion-Record Synthetic
+   * Databases" by Gray et al. The popular ranks are scattered over the records by hashing, so they aren't all
+   * next to each other.
+   */
+  private static class Zipfian extends KeyDistribution {
+    private final long items;
+    private final double zetan;
+    private final double alpha;
+    private final double eta;
+
+    Zipfian(long items, Random random) {
+      super(random);
+      if (items <= 0) {
+        throw new IllegalArgumentException("A zipfian distribution needs records to choose from");
+      }
+      this.items = items;
+      this.zetan = zeta(items);
+      this.alpha = 1 / (1 - ZIPFIAN_CONSTANT);
+      this.eta = (1 - Math.pow(2.0 / items, 1 - ZIPFIAN_CONSTANT)) / (1 - zeta(2) / zetan);
+    }
+
+    private static double zeta(long n) {
+      double sum = 0;
+      for (long i = 1; i <= n; i++) {
+        sum += 1 / Math.pow(i, ZIPFIAN_CONSTANT);
+      }
+      return sum;
+    }
+
+    long nextRank() {
+      double u = random.nextDouble();
+      double uz = u * zetan;
+      if (uz < 1) {
+        return 0;
+      }
+      if (uz < 1 + Math.pow(0.5, ZIPFIAN_CONSTANT)) {
+        return 1;
+      }
+      return Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+    }
+
+    @Override
+    public long next(long records) {
+      return scramble(nextRank()) % records;
+    }
+
+    private static long scramble(long rank) {
+      // FNV-1a over the bytes of the rank
+      long hash = 0xcbf29ce484222325L;
+      for (int i = 0; i < 8; i++) {
+        hash ^= (rank >>> (i * 8)) & 0xff;
+        hash *= 0x100000001b3L;
+      }
+      return hash & Long.MAX_VALUE;
+    }
+  }
+
+  private static class Latest extends KeyDistribution {
+    private final Zipfian ranks;
+
+    Latest(long records, Random random) {
+      super(random);
+      this.ranks = new Zipfian(records, random);
+    }
+
+    @Override
+    public long next(long records) {
+      return Math.max(0, records - 1 - ranks.nextRank());
+    }
+  }
+}
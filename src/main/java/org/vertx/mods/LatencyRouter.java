@@ -0,0 +1,301 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.vertx.mods;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoCredential;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends reads which may go to a secondary straight to the replica set member which has been answering fastest,
+ * through a client connected to that member alone.<p>
+ * If hedging is enabled and the member hasn't answered by the time it usually has, given by a percentile of its
+ * recent response times, the same read is also sent to the next fastest member and whichever answer comes first is
+ * used. The other answer is discarded when it arrives.
+ */
+public class LatencyRouter {
+
+  private final Mongo mongo;
+  private final String dbName;
+  private final MongoClientOptions options;
+  private final List<MongoCredential> credentials;
+  private final Logger logger;
+  private final LatencyTracker tracker;
+  private final boolean hedge;
+  private final double hedgePercentile;
+  private final long hedgeMinNanos;
+  private final long failurePenaltyNanos;
+  private final Map<String, MongoClient> clients = new ConcurrentHashMap<>();
+  private final AtomicLong hedged = new AtomicLong();
+  private final ExecutorService executor;
+  private volatile String primary;
+
+  /**
+   * @param options the options of the clients connected to single members, which must allow reading from a
+   * secondary
+   */
+  public LatencyRouter(Mongo mongo, String dbName, MongoClientOptions options, List<MongoCredential> credentials,
+                       JsonObject config, Logger logger) {
+    this.mongo = mongo;
+    this.dbName = dbName;
+    this.options = options;
+    this.credentials = credentials;
+    this.logger = logger;
+    Number alpha = config.getNumber("alpha");
+    this.tracker = new LatencyTracker(alpha == null ? 0.2 : alpha.doubleValue(), config.getInteger("window", 100));
+    this.hedge = config.getBoolean("hedge", false);
+    Number percentile = config.getNumber("hedge_percentile");
+    this.hedgePercentile = percentile == null ? 95 : percentile.doubleValue();
+    this.hedgeMinNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong("hedge_min_ms", 2));
+    this.failurePenaltyNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong("failure_penalty_ms", 1000));
+    // Reads get threads of their own, a read waiting for a thread which is busy waiting for the read would hang
+    final AtomicInteger threadCount = new AtomicInteger();
+    this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "mongo-persistor-read-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Finds the members of the replica set which can be read from, connecting to new members and closing the
+   * clients of members which have gone or can't be read from for now
+   */
+  public void refresh() {
+    CommandResult isMaster = mongo.getDB("admin").command("isMaster");
+    isMaster.throwOnError();
+    CommandResult status = mongo.getDB("admin").command(new BasicDBObject("replSetGetStatus", 1),
+        ReadPreference.primaryPreferred());
+    status.throwOnError();
+    Set<String> hosts = getReadableMembers(isMaster, status);
+    primary = (String) isMaster.get("primary");
+    for (String host : hosts) {
+      if (!clients.containsKey(host)) {
+        try {
+          clients.put(host, new MongoClient(new ServerAddress(host), credentials, options));
+        } catch (UnknownHostException e) {
+          logger.error("Failed to connect to replica set member " + host, e);
+        }
+      }
+    }
+    for (String host : new ArrayList<>(clients.keySet())) {
+      if (!hosts.contains(host)) {
+        clients.remove(host).close();
+        tracker.remove(host);
+      }
+    }
+  }
+
+  /**
+   * Hidden members aren't listed by <code>isMaster</code>, and members which are recovering, starting up or rolling
+   * back are listed but would fail reads or return stale data, so only the primary and the secondaries are kept.
+   *
+   * @param isMaster the result of <code>isMaster</code>
+   * @param status the result of <code>replSetGetStatus</code>
+   * @return the members which can be read from
+   */
+  public static Set<String> getReadableMembers(DBObject isMaster, DBObject status) {
+    Set<String> readable = new HashSet<>();
+    Object members = status.get("members");
+    if (members instanceof List) {
+      for (Object member : (List<?>) members) {
+        DBObject state = (DBObject) member;
+        if ("PRIMARY".equals(state.get("stateStr")) || "SECONDARY".equals(state.get("stateStr"))) {
+          readable.add((String) state.get("name"));
+        }
+      }
+    }
+    Set<String> hosts = new HashSet<>();
+    Object listed = isMaster.get("hosts");
+    if (listed instanceof List) {
+      for (Object host : (List<?>) listed) {
+        if (readable.contains(host)) {
+          hosts.add((String) host);
+        }
+      }
+    }
+    return hosts;
+  }
+
+  public void close() {
+    executor.shutdownNow();
+    for (MongoClient client : clients.values()) {
+      client.close();
+    }
+    clients.clear();
+  }
+
+  /**
+   * @param includePrimary whether the primary may be read from as well as the secondaries
+   * @return the members a read may go to, fastest first
+   */
+  public List<String> getMembers(boolean includePrimary) {
+    List<String> members = new ArrayList<>();
+    for (String member : clients.keySet()) {
+      if (includePrimary || !member.equals(primary)) {
+        members.add(member);
+      }
+    }
+    return tracker.rank(members);
+  }
+
+  public JsonObject getStats() {
+    return new JsonObject()
+        .putString("primary", primary)
+        .putNumber("hedged", hedged.get())
+        .putObject("members", tracker.getStats(hedgePercentile));
+  }
+
+  /**
+   * Runs a read on the fastest of the members, and if hedging is enabled, on the next fastest as well if the first
+   * is slow to answer
+   *
+   * @param members the members to read from, fastest first, as returned by {@link #getMembers(boolean)}
+   */
+  public <T> T read(List<String> members, final Read<T> read) {
+    CompletionService<Attempt<T>> completion = new ExecutorCompletionService<>(executor);
+    AtomicBoolean won = new AtomicBoolean();
+    int next = 0;
+    int outstanding = 1;
+    completion.submit(attempt(members.get(next++), read, won));
+    boolean hedging = hedge;
+    RuntimeException failure = null;
+    try {
+      while (outstanding > 0) {
+        Future<Attempt<T>> done;
+        if (hedging && next < members.size()) {
+          done = completion.poll(getHedgeDelay(members.get(0)), TimeUnit.NANOSECONDS);
+          if (done == null) {
+            hedged.incrementAndGet();
+            completion.submit(attempt(members.get(next++), read, won));
+            outstanding++;
+            hedging = false;
+            continue;
+          }
+        } else {
+          done = completion.take();
+        }
+        outstanding--;
+        try {
+          Attempt<T> attempt = done.get();
+          if (attempt.won) {
+            return attempt.result;
+          }
+        } catch (ExecutionException e) {
+          failure = e.getCause() instanceof RuntimeException ?
+              (RuntimeException) e.getCause() : new MongoException(e.getCause().getMessage());
+          // Try the next member rather than fail the read
+          if (outstanding == 0 && next < members.size()) {
+            completion.submit(attempt(members.get(next++), read, won));
+            outstanding++;
+          }
+        }
+      }
+      throw failure;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MongoException("Interrupted while reading");
+    }
+  }
+
+  private long getHedgeDelay(String member) {
+    return Math.max(hedgeMinNanos, tracker.getPercentile(member, hedgePercentile));
+  }
+
+  private <T> Callable<Attempt<T>> attempt(final String member, final Read<T> read, final AtomicBoolean won) {
+    return new Callable<Attempt<T>>() {
+      @Override
+      public Attempt<T> call() {
+        MongoClient client = clients.get(member);
+        if (client == null) {
+          throw new MongoException("Replica set member " + member + " has gone");
+        }
+        long start = System.nanoTime();
+        T result;
+        try {
+          result = read.run(client.getDB(dbName));
+        } catch (RuntimeException e) {
+          tracker.record(member, failurePenaltyNanos);
+          throw e;
+        }
+        tracker.record(member, System.nanoTime() - start);
+        // The first answer wins, a later one is of no use to anybody
+        if (won.compareAndSet(false, true)) {
+          return new Attempt<>(result, true);
+        }
+        read.discard(result);
+        return new Attempt<>(null, false);
+      }
+    };
+  }
+
+  /**
+   * A read which can be sent to any member
+   */
+  public interface Read<T> {
+
+    T run(DB db);
+
+    /**
+     * Releases the result of a read which lost the race, for example by closing a cursor
+     */
+    void discard(T result);
+  }
+
+  private static class Attempt<T> {
+    private final T result;
+    private final boolean won;
+
+    Attempt(T result, boolean won) {
+      this.result = result;
+      this.won = won;
+    }
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.vertx.mods;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the response time of reads per replica set member.<p>
+ * Each member has an exponentially weighted moving average, which follows changes quickly and is used to rank the
+ * members, and a window of its most recent response times, which percentiles are taken from.
+ */
+public class LatencyTracker {
+
+  private final double alpha;
+  private final int windowSize;
+  private final ConcurrentMap<String, Member> members = new ConcurrentHashMap<>();
+
+  /**
+   * @param alpha the weight of each new response time in the moving average, between 0 and 1
+   * @param windowSize the number of recent response times to keep for percentiles
+   */
+  public LatencyTracker(double alpha, int windowSize) {
+    this.alpha = alpha;
+    this.windowSize = windowSize;
+  }
+
+  public void record(String member, long nanos) {
+    Member stats = members.get(member);
+    if (stats == null) {
+      stats = new Member(windowSize);
+      Member existing = members.putIfAbsent(member, stats);
+      if (existing != null) {
+        stats = existing;
+      }
+    }
+    stats.add(nanos, alpha);
+  }
+
+  public void remove(String member) {
+    members.remove(member);
+  }
+
+  /**
+   * @return the moving average response time of a member in nanoseconds, or 0 if it hasn't been read from yet
+   */
+  public double getAverage(String member) {
+    Member stats = members.get(member);
+    return stats == null ? 0 : stats.getAverage();
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return the response time in nanoseconds which this percentage of the recent reads of the member took no
+   * longer than, or -1 if it hasn't been read from yet
+   */
+  public long getPercentile(String member, double percentile) {
+    Member stats = members.get(member);
+    return stats == null ? -1 : stats.getPercentile(percentile);
+  }
+
+  /**
+   * @return the members ordered fastest first. Members which haven't been read from yet come first, so they get
+   * measured.
+   */
+  public List<String> rank(Collection<String> candidates) {
+    List<String> ranked = new ArrayList<>(candidates);
+    Collections.sort(ranked, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        return Double.compare(getAverage(a), getAverage(b));
+      }
+    });
+    return ranked;
+  }
+
+  public JsonObject getStats(double percentile) {
+    JsonObject stats = new JsonObject();
+    for (Map.Entry<String, Member> member : members.entrySet()) {
+      stats.putObject(member.getKey(), new JsonObject()
+          .putNumber("reads", member.getValue().getCount())
+          .putNumber("average_ms", toMillis(member.getValue().getAverage()))
+          .putNumber("p" + (int) percentile + "_ms", toMillis(member.getValue().getPercentile(percentile))));
+    }
+    return stats;
+  }
+
+  private static double toMillis(double nanos) {
+    return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  private static class Member {
+    private final long[] window;
+    private long count;
+    private double average;
+
+    Member(int windowSize) {
+      this.window = new long[windowSize];
+    }
+
+    synchronized void add(long nanos, double alpha) {
+      window[(int) (count % window.length)] = nanos;
+      average = count == 0 ? nanos : alpha * nanos + (1 - alpha) * average;
+      count++;
+    }
+
+    synchronized long getCount() {
+      return count;
+    }
+
+    synchronized double getAverage() {
+      return average;
+    }
+
+    synchronized long getPercentile(double percentile) {
+      int size = (int) Math.min(count, window.length);
+      if (size == 0) {
+        return -1;
+      }
+      long[] sorted = Arrays.copyOf(window, size);
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(percentile / 100 * size) - 1;
+      return sorted[Math.max(0, Math.min(size - 1, index))];
+    }
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.vertx.mods;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.ServerAddress;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A cursor over values which have already been read, each returned as a document holding the value in
+ * <code>_id</code>, which is the form an aggregation <code>$group</code> returns them in
+ */
+public class ListCursor implements Cursor {
+
+  private final Iterator<?> values;
+
+  public ListCursor(List<?> values) {
+    this.values = values.iterator();
+  }
+
+  @Override
+  public boolean hasNext() {
+    return values.hasNext();
+  }
+
+  @Override
+  public DBObject next() {
+    return new BasicDBObject("_id", values.next());
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public long getCursorId() {
+    return 0;
+  }
+
+  @Override
+  public ServerAddress getServerAddress() {
+    return null;
+  }
+
+  @Override
+  public void close() {
+  }
+}
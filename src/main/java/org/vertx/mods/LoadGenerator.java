@@ -0,0 +1,305 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.vertx.mods;
+
+import org.vertx.java.busmods.BusModBase;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives a persistor with a workload in the style of YCSB, and reports the throughput and the latency of each kind
+ * of operation.<p>
+ * The generator first saves <code>record_count</code> records, unless <code>load</code> is false, then runs
+ * <code>operation_count</code> operations chosen according to the mix, keeping <code>concurrency</code> requests
+ * in flight. It runs on an event loop and only talks to the persistor over the event bus, so it measures what a
+ * client of the persistor sees. The report is logged, and published to <code>report_address</code> if given.
+ */
+public class LoadGenerator extends BusModBase {
+
+  private static final String[] ACTIONS = {"save", "findone", "find", "update", "aggregate"};
+
+  private String persistor;
+  private String collection;
+  private String keyPrefix;
+  private int fields;
+  private int fieldLength;
+  private int scanLength;
+  private int concurrency;
+  private long operationCount;
+  private double[] mix;
+  private KeyDistribution keys;
+  private final Random random = new Random();
+  private final Map<String, Latencies> latencies = new LinkedHashMap<>();
+  private long records;
+  private long issued;
+  private long completed;
+  private long started;
+
+  @Override
+  public void start() {
+    super.start();
+    persistor = getOptionalStringConfig("persistor", "vertx.mongopersistor");
+    collection = getOptionalStringConfig("collection", "load_test");
+    keyPrefix = getOptionalStringConfig("key_prefix", "user");
+    records = getOptionalLongConfig("record_count", 1000);
+    operationCount = getOptionalLongConfig("operation_count", 10000);
+    concurrency = getOptionalIntConfig("concurrency", 16);
+    scanLength = getOptionalIntConfig("scan_length", 10);
+    JsonObject document = getOptionalObjectConfig("document", new JsonObject());
+    fields = document.getInteger("fields", 10);
+    fieldLength = document.getInteger("field_length", 100);
+    if (config.getNumber("seed") != null) {
+      random.setSeed(config.getLong("seed"));
+    }
+    mix = readMix(getOptionalObjectConfig("mix", new JsonObject().putNumber("findone", 0.95).putNumber("update", 0.05)));
+    keys = KeyDistribution.create(getOptionalStringConfig("distribution", "zipfian"), records, random);
+
+    if (getOptionalBooleanConfig("load", true)) {
+      load();
+    } else {
+      run();
+    }
+  }
+
+  private double[] readMix(JsonObject config) {
+    double[] weights = new double[ACTIONS.length];
+    double total = 0;
+    for (String action : config.getFieldNames()) {
+      int index = Arrays.asList(ACTIONS).indexOf(action);
+      if (index < 0) {
+        throw new IllegalArgumentException("Unknown action in mix: " + action);
+      }
+      weights[index] = config.getNumber(action).doubleValue();
+      total += weights[index];
+    }
+    if (total <= 0) {
+      throw new IllegalArgumentException("The mix must have at least one action");
+    }
+    double cumulative = 0;
+    for (int i = 0; i < weights.length; i++) {
+      cumulative += weights[i] / total;
+      weights[i] = cumulative;
+    }
+    return weights;
+  }
+
+  /**
+   * Saves the initial records, keeping <code>concurrency</code> saves in flight
+   */
+  private void load() {
+    final long total = records;
+    if (total == 0) {
+      run();
+      return;
+    }
+    final long[] next = {0};
+    final long[] done = {0};
+    Handler<Message<JsonObject>> onReply = new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        if (!"ok".equals(reply.body().getString("status"))) {
+          logger.error("Failed to load a record: " + reply.body().getString("message"));
+        }
+        if (++done[0] == total) {
+          logger.info("Loaded " + total + " records into " + collection);
+          run();
+        } else if (next[0] < total) {
+          eb.send(persistor, save(next[0]++), this);
+        }
+      }
+    };
+    for (int i = 0; i < concurrency && next[0] < total; i++) {
+      eb.send(persistor, save(next[0]++), onReply);
+    }
+  }
+
+  private void run() {
+    for (String action : ACTIONS) {
+      latencies.put(action, new Latencies());
+    }
+    started = System.nanoTime();
+    for (int i = 0; i < concurrency && issued < operationCount; i++) {
+      issue();
+    }
+    if (operationCount == 0) {
+      report();
+    }
+  }
+
+  private void issue() {
+    issued++;
+    final String action = chooseAction();
+    final long start = System.nanoTime();
+    eb.send(persistor, operation(action), new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        latencies.get(action).add(System.nanoTime() - start, "ok".equals(reply.body().getString("status")));
+        completed++;
+        if (issued < operationCount) {
+          issue();
+        } else if (completed == operationCount) {
+          report();
+        }
+      }
+    });
+  }
+
+  private String chooseAction() {
+    double choice = random.nextDouble();
+    for (int i = 0; i < ACTIONS.length; i++) {
+      if (choice < mix[i]) {
+        return ACTIONS[i];
+      }
+    }
+    return ACTIONS[ACTIONS.length - 1];
+  }
+
+  private JsonObject operation(String action) {
+    switch (action) {
+      case "save":
+        return save(records++);
+      case "findone":
+        return request("findone").putObject("matcher", new JsonObject().putString("_id", nextKey()));
+      case "find":
+        return request("find")
+            .putObject("matcher", new JsonObject().putObject("_id", new JsonObject().putString("$gte", nextKey())))
+            .putObject("sort", new JsonObject().putNumber("_id", 1))
+            .putNumber("limit", scanLength);
+      case "update":
+        return request("update")
+            .putObject("criteria", new JsonObject().putString("_id", nextKey()))
+            .putObject("objNew", new JsonObject().putObject("$set",
+                new JsonObject().putString("field" + random.nextInt(fields), randomString())));
+      default:
+        JsonArray pipelines = new JsonArray()
+            .addObject(new JsonObject().putObject("$match",
+                new JsonObject().putObject("_id", new JsonObject().putString("$gte", nextKey()))))
+            .addObject(new JsonObject().putNumber("$limit", scanLength))
+            .addObject(new JsonObject().putObject("$group",
+                new JsonObject().putString("_id", null).putObject("count", new JsonObject().putNumber("$sum", 1))));
+        return request("aggregate").putArray("pipelines", pipelines);
+    }
+  }
+
+  private JsonObject request(String action) {
+    return new JsonObject().putString("action", action).putString("collection", collection);
+  }
+
+  private JsonObject save(long record) {
+    JsonObject document = new JsonObject().putString("_id", key(record));
+    for (int i = 0; i < fields; i++) {
+      document.putString("field" + i, randomString());
+    }
+    return request("save").putObject("document", document);
+  }
+
+  private String nextKey() {
+    return key(keys.next(Math.max(1, records)));
+  }
+
+  /**
+   * Keys are zero padded so that they sort in the order the records were inserted
+   */
+  private String key(long record) {
+    return keyPrefix + String.format("%012d", record);
+  }
+
+  private String randomString() {
+    char[] chars = new char[fieldLength];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = (char) ('a' + random.nextInt(26));
+    }
+    return new String(chars);
+  }
+
+  private void report() {
+    long elapsed = System.nanoTime() - started;
+    JsonObject operations = new JsonObject();
+    long errors = 0;
+    for (Map.Entry<String, Latencies> entry : latencies.entrySet()) {
+      if (entry.getValue().count > 0) {
+        operations.putObject(entry.getKey(), entry.getValue().toJson());
+        errors += entry.getValue().errors;
+      }
+    }
+    double seconds = elapsed / (double) TimeUnit.SECONDS.toNanos(1);
+    JsonObject report = new JsonObject()
+        .putNumber("operations", completed)
+        .putNumber("errors", errors)
+        .putNumber("time_ms", TimeUnit.NANOSECONDS.toMillis(elapsed))
+        .putNumber("throughput", seconds == 0 ? 0 : completed / seconds)
+        .putObject("actions", operations);
+    logger.info("Load test finished: " + report.encode());
+    String reportAddress = getOptionalStringConfig("report_address", null);
+    if (reportAddress != null) {
+      eb.publish(reportAddress, report);
+    }
+  }
+
+  /**
+   * The response times of one kind of operation, all of which are kept so the percentiles are exact
+   */
+  private static class Latencies {
+    private long[] nanos = new long[1024];
+    private int count;
+    private long errors;
+
+    void add(long duration, boolean ok) {
+      if (count == nanos.length) {
+        nanos = Arrays.copyOf(nanos, count * 2);
+      }
+      nanos[count++] = duration;
+      if (!ok) {
+        errors++;
+      }
+    }
+
+    JsonObject toJson() {
+      long[] sorted = Arrays.copyOf(nanos, count);
+      Arrays.sort(sorted);
+      long total = 0;
+      for (long duration : sorted) {
+        total += duration;
+      }
+      return new JsonObject()
+          .putNumber("count", count)
+          .putNumber("errors", errors)
+          .putNumber("mean_ms", toMillis(total / count))
+          .putNumber("p50_ms", toMillis(percentile(sorted, 50)))
+          .putNumber("p95_ms", toMillis(percentile(sorted, 95)))
+          .putNumber("p99_ms", toMillis(percentile(sorted, 99)))
+          .putNumber("max_ms", toMillis(sorted[count - 1]));
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+      int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+      return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static double toMillis(long nanos) {
+      return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+  }
+}
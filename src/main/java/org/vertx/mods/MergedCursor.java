@@ -0,0 +1,259 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.vertx.mods;
+
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.ServerAddress;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.ObjectId;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.regex.Pattern;
+
+/**
+ * A cursor which merges several cursors into one.<p>
+ * If a sort is given each of the cursors must already be sorted by it, and the documents are merged in sort
+ * order, one document at a time. Without a sort the cursors are read one after the other.<p>
+ * The skip and limit apply to the merged result, so none of the cursors are read further than needed.
+ */
+public class MergedCursor implements Cursor {
+
+  private final List<? extends Cursor> cursors;
+  private final PriorityQueue<Head> heads;
+  private int toSkip;
+  private int remaining;
+  private boolean primed;
+
+  /**
+   * @param cursors the cursors to merge, each sorted by sort
+   * @param sort the sort, in the same form as a MongoDB sort document, or null
+   * @param skip the number of merged documents to skip, or -1 for none
+   * @param limit the maximum number of merged documents to return, or -1 for all
+   */
+  public MergedCursor(List<? extends Cursor> cursors, DBObject sort, int skip, int limit) {
+    this.cursors = cursors;
+    this.heads = new PriorityQueue<>(Math.max(1, cursors.size()), new HeadComparator(sort));
+    this.toSkip = Math.max(skip, 0);
+    this.remaining = limit;
+  }
+
+  @Override
+  public boolean hasNext() {
+    prime();
+    while (toSkip > 0 && !heads.isEmpty()) {
+      advance();
+      toSkip--;
+    }
+    return remaining != 0 && !heads.isEmpty();
+  }
+
+  @Override
+  public DBObject next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    if (remaining > 0) {
+      remaining--;
+    }
+    return advance();
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public long getCursorId() {
+    return 0;
+  }
+
+  @Override
+  public ServerAddress getServerAddress() {
+    return null;
+  }
+
+  @Override
+  public void close() {
+    for (Cursor cursor : cursors) {
+      try {
+        cursor.close();
+      } catch (Exception ignore) {
+      }
+    }
+    heads.clear();
+  }
+
+  private void prime() {
+    if (!primed) {
+      primed = true;
+      for (int i = 0; i < cursors.size(); i++) {
+        Cursor cursor = cursors.get(i);
+        if (cursor.hasNext()) {
+          heads.add(new Head(i, cursor, cursor.next()));
+        }
+      }
+    }
+  }
+
+  private DBObject advance() {
+    Head head = heads.poll();
+    DBObject doc = head.doc;
+    if (head.cursor.hasNext()) {
+      heads.add(new Head(head.index, head.cursor, head.cursor.next()));
+    }
+    return doc;
+  }
+
+  private static class Head {
+    final int index;
+    final Cursor cursor;
+    final DBObject doc;
+
+    Head(int index, Cursor cursor, DBObject doc) {
+      this.index = index;
+      this.cursor = cursor;
+      this.doc = doc;
+    }
+  }
+
+  private static class HeadComparator implements Comparator<Head> {
+    private final SortComparator sortComparator;
+
+    HeadComparator(DBObject sort) {
+      this.sortComparator = sort == null ? null : new SortComparator(sort);
+    }
+
+    @Override
+    public int compare(Head h1, Head h2) {
+      if (sortComparator != null) {
+        int result = sortComparator.compare(h1.doc, h2.doc);
+        if (result != 0) {
+          return result;
+        }
+      }
+      // Ties go to the cursor listed first, which keeps the merge stable
+      return Integer.compare(h1.index, h2.index);
+    }
+  }
+
+  /**
+   * Orders documents the way MongoDB would for a sort document such as <code>{"day": 1, "seq": -1}</code>.
+   * Fields may be dotted paths into embedded documents and a missing field sorts as null.
+   */
+  public static class SortComparator implements Comparator<DBObject> {
+    private final String[] fields;
+    private final int[] directions;
+
+    public SortComparator(DBObject sort) {
+      fields = sort.keySet().toArray(new String[0]);
+      directions = new int[fields.length];
+      for (int i = 0; i < fields.length; i++) {
+        Object direction = sort.get(fields[i]);
+        directions[i] = direction instanceof Number && ((Number) direction).intValue() < 0 ? -1 : 1;
+      }
+    }
+
+    @Override
+    public int compare(DBObject d1, DBObject d2) {
+      for (int i = 0; i < fields.length; i++) {
+        int result = compareValues(getPath(d1, fields[i]), getPath(d2, fields[i]));
+        if (result != 0) {
+          return result * directions[i];
+        }
+      }
+      return 0;
+    }
+
+    private static Object getPath(DBObject doc, String path) {
+      Object value = doc;
+      for (String part : path.split("\\.")) {
+        if (value instanceof DBObject) {
+          value = ((DBObject) value).get(part);
+        } else if (value instanceof Map) {
+          value = ((Map<?, ?>) value).get(part);
+        } else {
+          return null;
+        }
+      }
+      return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    static int compareValues(Object v1, Object v2) {
+      int rank1 = typeRank(v1);
+      int rank2 = typeRank(v2);
+      if (rank1 != rank2) {
+        return Integer.compare(rank1, rank2);
+      }
+      if (v1 == null) {
+        return 0;
+      }
+      if (v1 instanceof Number) {
+        Number n1 = (Number) v1;
+        Number n2 = (Number) v2;
+        if (isIntegral(n1) && isIntegral(n2)) {
+          return Long.compare(n1.longValue(), n2.longValue());
+        }
+        return Double.compare(n1.doubleValue(), n2.doubleValue());
+      }
+      if (v1 instanceof Comparable && v1.getClass() == v2.getClass()) {
+        return ((Comparable<Object>) v1).compareTo(v2);
+      }
+      return v1.toString().compareTo(v2.toString());
+    }
+
+    private static boolean isIntegral(Number n) {
+      return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+    }
+
+    // The order MongoDB uses when comparing values of different BSON types
+    private static int typeRank(Object value) {
+      if (value == null) {
+        return 0;
+      } else if (value instanceof Number) {
+        return 1;
+      } else if (value instanceof String) {
+        return 2;
+      } else if (value instanceof List || value instanceof Collection || value.getClass().isArray() && !(value instanceof byte[])) {
+        return 4;
+      } else if (value instanceof DBObject || value instanceof Map) {
+        return 3;
+      } else if (value instanceof byte[]) {
+        return 5;
+      } else if (value instanceof ObjectId) {
+        return 6;
+      } else if (value instanceof Boolean) {
+        return 7;
+      } else if (value instanceof Date) {
+        return 8;
+      } else if (value instanceof BSONTimestamp) {
+        return 9;
+      } else if (value instanceof Pattern) {
+        return 10;
+      }
+      return 11;
+    }
+  }
+}
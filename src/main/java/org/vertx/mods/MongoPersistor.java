@@ -17,17 +17,45 @@
 package org.vertx.mods;
 
 import com.mongodb.*;
+import org.bson.types.BSONTimestamp;
 import org.vertx.java.busmods.BusModBase;
+import org.vertx.java.core.AsyncResult;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.eventbus.Message;
 import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 
 import javax.net.ssl.SSLSocketFactory;
+import java.io.File;
+import java.io.IOException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.regex.Pattern;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * MongoDB Persistor Bus Module<p>
@@ -39,6 +67,15 @@ import java.util.UUID;
  */
 public class MongoPersistor extends BusModBase implements Handler<Message<JsonObject>> {
 
+  private static final Set<String> LOCAL_ACTIONS = new HashSet<>(Arrays.asList("batch", "cache_stats", "slow_ops",
+      "latency_stats", "query_stats", "circuit_status", "pool_stats", "job_status", "cancel_job"));
+
+  // Write errors which can go away if the write is tried again: host unreachable or not found, time limit exceeded,
+  // network timeout, shutting down, stepped down, socket exception, not master, and interrupted by shutdown or by a
+  // change of replica set state
+  private static final Set<Integer> TRANSIENT_WRITE_CODES = new HashSet<>(Arrays.asList(6, 7, 50, 89, 91, 189, 262,
+      9001, 10107, 11600, 11602, 13435, 13436));
+
   protected String address;
   protected String host;
   protected int port;
@@ -53,6 +90,37 @@ public class MongoPersistor extends BusModBase implements Handler<Message<JsonOb
   protected Mongo mongo;
   protected DB db;
   private boolean useMongoTypes;
+  private int workerThreads;
+  private ExecutorService executor;
+  private ExecutorService partitionExecutor;
+  private CollectionRouter router;
+  private final Set<String> collectionNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private volatile long collectionNamesLoaded;
+  private long routingRefreshInterval;
+  private IdGenerator idGenerator;
+  private IncCombiner incCombiner;
+  private long incCombiningWindow;
+  private WriteBehindJournal journal;
+  private Set<String> writeBehindCollections;
+  private int drainBatchSize;
+  private String deadLetterCollection;
+  private final ReentrantLock drainLock = new ReentrantLock();
+  private NearCache nearCache;
+  private SlowOpLog slowOpLog;
+  private QueryStats queryStats;
+  private JsonObject defaultMaxTimes;
+  private ReplicationTracker replicationTracker;
+  private ReadPreference sessionReadPreference;
+  private LatencyRouter latencyRouter;
+  private CircuitBreaker circuitBreaker;
+  // Set when the request being handled on this thread was answered with an error
+  private final ThreadLocal<Boolean> errorSent = new ThreadLocal<>();
+  private boolean serveStale;
+  private int poolSize;
+  private PoolMonitor poolMonitor;
+  private DistinctCache distinctCache;
+  private final Map<String, BulkJob> jobs = new ConcurrentHashMap<>();
+  private ExecutorService jobExecutor;
 
   @Override
   public void start() {
@@ -66,11 +134,14 @@ public class MongoPersistor extends BusModBase implements Handler<Message<JsonOb
     username = getOptionalStringConfig("username", null);
     password = getOptionalStringConfig("password", null);
     readPreference = ReadPreference.valueOf(getOptionalStringConfig("read_preference", "primary"));
-    int poolSize = getOptionalIntConfig("pool_size", 10);
+    poolSize = getOptionalIntConfig("pool_size", 10);
     autoConnectRetry = getOptionalBooleanConfig("auto_connect_retry", true);
     socketTimeout = getOptionalIntConfig("socket_timeout", 60000);
     useSSL = getOptionalBooleanConfig("use_ssl", false);
     useMongoTypes = getOptionalBooleanConfig("use_mongo_types", false);
+    workerThreads = getOptionalIntConfig("worker_threads", poolSize);
+    idGenerator = IdGenerator.create(getOptionalStringConfig("id_generator", "uuid"), useMongoTypes);
+    defaultMaxTimes = getOptionalObjectConfig("max_time_ms", new JsonObject());
 
     JsonArray seedsProperty = config.getArray("seeds");
 
@@ -80,6 +151,18 @@ public class MongoPersistor extends BusModBase implements Handler<Message<JsonOb
       builder.autoConnectRetry(autoConnectRetry);
       builder.socketTimeout(socketTimeout);
       builder.readPreference(readPreference);
+      // Names the MBeans of the pools of this client, so the pools of other clients in the JVM aren't reported
+      String description = "mongo-persistor-" + Integer.toHexString(System.identityHashCode(this));
+      builder.description(description);
+      poolMonitor = new PoolMonitor(description);
+      int minPoolSize = getOptionalIntConfig("min_pool_size", 0);
+      if (minPoolSize > 0) {
+        builder.minConnectionsPerHost(Math.min(minPoolSize, poolSize));
+      }
+      int maxConnectionIdleTime = getOptionalIntConfig("max_connection_idle_time", 0);
+      if (maxConnectionIdleTime > 0) {
+        builder.maxConnectionIdleTime(maxConnectionIdleTime);
+      }
 
       if (useSSL) {
         builder.socketFactory(SSLSocketFactory.getDefault());
@@ -97,10 +180,474 @@ public class MongoPersistor extends BusModBase implements Handler<Message<JsonOb
       if (username != null && password != null) {
         db.authenticate(username, password.toCharArray());
       }
+
+      JsonObject latencyRouting = config.getObject("latency_routing");
+      if (latencyRouting != null) {
+        // The clients of single members must be allowed to read from a secondary
+        builder.readPreference(ReadPreference.secondaryPreferred());
+        builder.description(description + "-members");
+        startLatencyRouting(latencyRouting, builder.build());
+      }
     } catch (UnknownHostException e) {
       logger.error("Failed to connect to mongo server", e);
     }
-    eb.registerHandler(address, this);
+
+    JsonObject slowOps = config.getObject("slow_ops");
+    if (slowOps != null) {
+      slowOpLog = new SlowOpLog(slowOps);
+    }
+
+    JsonObject queryStatsConfig = config.getObject("query_stats");
+    if (queryStatsConfig != null) {
+      queryStats = new QueryStats(queryStatsConfig);
+    }
+
+    JsonObject incCombining = config.getObject("inc_combining");
+    if (incCombining != null) {
+      incCombiner = new IncCombiner(incCombining.getArray("collections", new JsonArray()));
+      incCombiningWindow = incCombining.getLong("window", 50);
+    }
+
+    JsonObject nearCacheConfig = config.getObject("near_cache");
+    if (nearCacheConfig != null && mongo != null) {
+      nearCache = new NearCache(mongo, dbName, nearCacheConfig, logger);
+      try {
+        nearCache.start();
+      } catch (MongoException e) {
+        logger.error("Failed to start the near cache, it is disabled", e);
+      }
+    }
+
+    JsonObject writeBehind = config.getObject("write_behind");
+    if (writeBehind != null) {
+      openJournal(writeBehind);
+    }
+
+    JsonObject session = config.getObject("session");
+    if (session != null && mongo != null) {
+      startSessions(session);
+    }
+
+    JsonObject distinctCacheConfig = config.getObject("distinct_cache");
+    if (distinctCacheConfig != null) {
+      distinctCache = new DistinctCache(distinctCacheConfig);
+    }
+
+    JsonObject poolStats = config.getObject("pool_stats");
+    if (poolStats != null && poolMonitor != null) {
+      samplePools(poolStats);
+    }
+
+    JsonObject circuitBreakerConfig = config.getObject("circuit_breaker");
+    if (circuitBreakerConfig != null) {
+      circuitBreaker = new CircuitBreaker(circuitBreakerConfig);
+      serveStale = circuitBreakerConfig.getBoolean("serve_stale", true);
+    }
+
+    JsonObject indexes = config.getObject("indexes");
+    if (indexes != null && db != null) {
+      ensureIndexes(indexes);
+    }
+
+    JsonObject routingConfig = config.getObject("routing");
+    if (routingConfig != null) {
+      router = new CollectionRouter(routingConfig);
+      routingRefreshInterval = getOptionalLongConfig("routing_refresh_interval", 60000);
+      maintainBuckets();
+      vertx.setPeriodic(getOptionalLongConfig("routing_maintenance_interval", 3600000), new Handler<Long>() {
+        @Override
+        public void handle(Long timerID) {
+          maintainBuckets();
+        }
+      });
+    }
+  }
+
+  /**
+   * The handler is only registered once the module is connected and, if configured, warmed up, so no request is
+   * sent to an instance which can't serve it yet
+   */
+  @Override
+  public void start(final org.vertx.java.core.Future<Void> startedResult) {
+    start();
+    if (db == null) {
+      startedResult.setFailure(new IllegalStateException("Failed to connect to mongo server"));
+      return;
+    }
+    JsonObject warmUpConfig = config.getObject("warm_up");
+    final JsonObject ready = warmUpConfig == null ? null : warmUp(warmUpConfig);
+    final String readyAddress = warmUpConfig == null ? null :
+        warmUpConfig.getString("ready_address", address + ".ready");
+    eb.registerHandler(address, this, new Handler<AsyncResult<Void>>() {
+      @Override
+      public void handle(AsyncResult<Void> result) {
+        if (result.failed()) {
+          startedResult.setFailure(result.cause());
+          return;
+        }
+        if (ready != null) {
+          eb.publish(readyAddress, ready);
+        }
+        startedResult.setResult(null);
+      }
+    });
+  }
+
+  /**
+   * Opens every connection of the pool, then runs the warm-up queries a number of times so the code which serves
+   * them, including the conversion of their results, is compiled before the first real request arrives
+   *
+   * @return what was warmed up, which is published once the module is ready
+   */
+  private JsonObject warmUp(JsonObject warmUp) {
+    long start = System.nanoTime();
+    int connections = openConnections(warmUp.getLong("timeout", 10000));
+    int iterations = warmUp.getInteger("iterations", 100);
+    JsonArray queries = warmUp.getArray("queries", new JsonArray());
+    int failed = 0;
+    for (int i = 0; i < iterations; i++) {
+      for (Object query : queries) {
+        BatchMessage message = new BatchMessage(((JsonObject) query).copy());
+        handle(message);
+        JsonObject reply = message.getReply();
+        // A find with more results than fit in a batch has had its cursor closed, as the batch can't be continued
+        String status = reply == null ? null : reply.getString("status");
+        if (!"ok".equals(status) && !"more-exist".equals(status)) {
+          if (failed++ == 0) {
+            logger.warn("Warm-up query " + query + " failed: " + (reply == null ? "no reply" : reply.getString("message")));
+          }
+          continue;
+        }
+        exerciseConversions(reply);
+      }
+    }
+    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    logger.info("Warmed up " + connections + " connections and " + queries.size() + " queries in " + millis + "ms");
+    return new JsonObject()
+        .putString("address", address)
+        .putNumber("connections", connections)
+        .putNumber("queries", queries.size() * iterations)
+        .putNumber("failed", failed)
+        .putNumber("time_ms", millis);
+  }
+
+  /**
+   * Pings from as many threads as the pool has connections, each holding on to its connection until all have one,
+   * so that the whole pool is opened
+   *
+   * @return the number of connections which were opened
+   */
+  private int openConnections(long timeout) {
+    final CyclicBarrier barrier = new CyclicBarrier(poolSize);
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    ExecutorService pinger = Executors.newFixedThreadPool(poolSize);
+    List<Future<Boolean>> pings = new ArrayList<>();
+    for (int i = 0; i < poolSize; i++) {
+      pings.add(pinger.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+          db.requestStart();
+          try {
+            boolean ok = db.command("ping").ok();
+            barrier.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            return ok;
+          } finally {
+            db.requestDone();
+          }
+        }
+      }));
+    }
+    int opened = 0;
+    try {
+      for (Future<Boolean> ping : pings) {
+        try {
+          if (ping.get()) {
+            opened++;
+          }
+        } catch (ExecutionException e) {
+          // A ping which timed out waiting for the others still opened its connection
+          if (e.getCause() instanceof TimeoutException || e.getCause() instanceof BrokenBarrierException) {
+            opened++;
+          } else {
+            logger.warn("Failed to open a connection: " + e.getCause().getMessage());
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      pinger.shutdownNow();
+    }
+    return opened;
+  }
+
+  /**
+   * Converts the documents of a warm-up reply to BSON and back, so the conversions of writes are warmed up as well
+   * as those of reads
+   */
+  private void exerciseConversions(JsonObject reply) {
+    Object result = reply.getField("result");
+    if (result == null) {
+      result = reply.getField("results");
+    }
+    if (result instanceof JsonObject) {
+      dbObjectToJsonObject(jsonToDBObject((JsonObject) result));
+    } else if (result instanceof JsonArray) {
+      for (Object doc : (JsonArray) result) {
+        if (doc instanceof JsonObject) {
+          dbObjectToJsonObject(jsonToDBObject((JsonObject) doc));
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates the indexes of the upcoming buckets of each routed collection, and drops the buckets which are
+   * older than the retention allows
+   */
+  private void maintainBuckets() {
+    if (db == null) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    for (String collection : router.getCollections()) {
+      try {
+        for (String bucket : router.getUpcomingBuckets(collection, now)) {
+          for (Object index : router.getIndexes(collection)) {
+            createIndex(bucket, (JsonObject) index);
+          }
+        }
+        for (String bucket : router.getExpiredBuckets(collection, db.getCollectionNames(), now)) {
+          logger.info("Dropping expired bucket " + bucket);
+          db.getCollection(bucket).drop();
+          invalidateCached(collection, null);
+        }
+      } catch (MongoException e) {
+        logger.error("Failed to maintain buckets of " + collection, e);
+      }
+    }
+    try {
+      refreshCollectionNames();
+    } catch (MongoException e) {
+      logger.error("Failed to list the buckets", e);
+    }
+  }
+
+  /**
+   * The names of the collections, which routed reads pick their buckets from. They are listed again once they are
+   * older than the routing refresh interval, and buckets which saves of this module create are added straight away,
+   * so only buckets created by other nodes can take that long to be seen.
+   */
+  private Set<String> getCollectionNames() {
+    if (System.currentTimeMillis() - collectionNamesLoaded >= routingRefreshInterval) {
+      refreshCollectionNames();
+    }
+    return collectionNames;
+  }
+
+  private synchronized void refreshCollectionNames() {
+    Set<String> names = db.getCollectionNames();
+    collectionNames.addAll(names);
+    collectionNames.retainAll(names);
+    collectionNamesLoaded = System.currentTimeMillis();
+  }
+
+  /**
+   * Samples the pools periodically, so the peaks aren't only those seen when the stats are asked for, and publishes
+   * each sample if an address is configured
+   */
+  private void samplePools(JsonObject poolStats) {
+    final String feed = poolStats.getString("address");
+    vertx.setPeriodic(poolStats.getLong("sample_interval", 1000), new Handler<Long>() {
+      @Override
+      public void handle(Long timerID) {
+        JsonObject pools = poolMonitor.sample();
+        if (feed != null) {
+          eb.publish(feed, new JsonObject().putNumber("time", System.currentTimeMillis()).putObject("pools", pools));
+        }
+      }
+    });
+  }
+
+  private void startLatencyRouting(JsonObject latencyRouting, MongoClientOptions options) {
+    List<MongoCredential> credentials = new ArrayList<>();
+    if (username != null && password != null) {
+      credentials.add(MongoCredential.createMongoCRCredential(username, dbName, password.toCharArray()));
+    }
+    latencyRouter = new LatencyRouter(mongo, dbName, options, credentials, latencyRouting, logger);
+    Handler<Long> refresh = new Handler<Long>() {
+      @Override
+      public void handle(Long timerID) {
+        try {
+          latencyRouter.refresh();
+        } catch (MongoException e) {
+          logger.warn("Failed to refresh the replica set members: " + e.getMessage());
+        }
+      }
+    };
+    refresh.handle(null);
+    vertx.setPeriodic(latencyRouting.getLong("refresh_interval", 10000), refresh);
+  }
+
+  /**
+   * Reads which may go to a secondary, and aren't limited by tags, can be routed to the fastest member. A read
+   * preference of primaryPreferred is left to the driver, which sends it to the primary.
+   *
+   * @return the members the read may go to, fastest first, or an empty list if the read must be left to the driver
+   */
+  private List<String> getLatencyMembers(ReadPreference preference) {
+    if (latencyRouter == null) {
+      return Collections.emptyList();
+    }
+    ReadPreference effective = preference != null ? preference : readPreference;
+    if (!effective.isSlaveOk() || effective.getName().equals(ReadPreference.primaryPreferred().getName())
+        || effective instanceof TaggableReadPreference && !((TaggableReadPreference) effective).getTagSets().isEmpty()) {
+      return Collections.emptyList();
+    }
+    return latencyRouter.getMembers(effective.getName().equals(ReadPreference.nearest().getName()));
+  }
+
+  /**
+   * In session mode writes reply with the opTime of the write, and a read which carries it only goes to the
+   * secondaries once they all have it. How far they have got is polled in the background.
+   */
+  private void startSessions(JsonObject session) {
+    replicationTracker = new ReplicationTracker(mongo);
+    sessionReadPreference = ReadPreference.valueOf(session.getString("read_preference", "secondaryPreferred"));
+    vertx.setPeriodic(session.getLong("poll_interval", 100), new Handler<Long>() {
+      @Override
+      public void handle(Long timerID) {
+        try {
+          replicationTracker.refresh();
+        } catch (MongoException e) {
+          replicationTracker.reset();
+        }
+      }
+    });
+  }
+
+  /**
+   * @return the read preference a read asks for, or the primary if it carries the op_time of a write which hasn't
+   * reached every secondary yet, or null to use the read preference of the module
+   */
+  private ReadPreference getReadPreference(Message<JsonObject> message) {
+    String name = message.body().getString("read_preference");
+    ReadPreference preference = name == null ? null : ReadPreference.valueOf(name);
+    String token = message.body().getString("op_time");
+    if (token != null && replicationTracker != null) {
+      if (!replicationTracker.isReplicated(ReplicationTracker.decode(token))) {
+        return ReadPreference.primary();
+      }
+      if (preference == null) {
+        preference = sessionReadPreference;
+      }
+    }
+    return preference;
+  }
+
+  /**
+   * In session mode, adds the opTime of a write to its reply. It is taken from the getLastError of the write where
+   * possible, and otherwise from the newest entry in the oplog, which is no earlier.
+   */
+  private void putOpTime(JsonObject reply, WriteResult res) {
+    if (replicationTracker == null) {
+      return;
+    }
+    BSONTimestamp opTime = res == null ? null : getWriteOpTime(res);
+    if (opTime == null) {
+      opTime = replicationTracker.getLatestOpTime();
+    }
+    if (opTime != null) {
+      reply.putString("op_time", ReplicationTracker.encode(opTime));
+    }
+  }
+
+  /**
+   * @return the opTime the getLastError of a write returned, or null if it didn't return one
+   */
+  @SuppressWarnings("deprecation") // The driver has no other way to give us the getLastError of a write
+  private static BSONTimestamp getWriteOpTime(WriteResult res) {
+    CommandResult lastError = res.getCachedLastError();
+    return lastError == null ? null : ReplicationTracker.toTimestamp(lastError.get("lastOp"));
+  }
+
+  /**
+   * Creates the indexes given in the config, in the background so starting isn't held up by index builds
+   */
+  private void ensureIndexes(final JsonObject indexes) {
+    getExecutor().execute(new Runnable() {
+      @Override
+      public void run() {
+        for (String collection : indexes.getFieldNames()) {
+          for (Object index : indexes.getArray(collection)) {
+            try {
+              createIndex(collection, indexSpec((JsonObject) index));
+            } catch (MongoException | IllegalArgumentException e) {
+              logger.error("Failed to create index " + index + " on " + collection, e);
+            }
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Turns the fields of an <code>ensure_index</code>, or of an index in the config, into the keys and options of
+   * a MongoDB createIndex
+   */
+  private JsonObject indexSpec(JsonObject index) {
+    JsonObject options = index.getObject("options", new JsonObject()).copy();
+    if (index.getString("name") != null) {
+      options.putString("name", index.getString("name"));
+    }
+    if (index.getField("background") != null) {
+      options.putBoolean("background", index.getBoolean("background"));
+    }
+    if (index.getField("unique") != null) {
+      options.putBoolean("unique", index.getBoolean("unique"));
+    }
+    if (index.getField("sparse") != null) {
+      options.putBoolean("sparse", index.getBoolean("sparse"));
+    }
+    if (index.getField("expire_after_seconds") != null) {
+      options.putNumber("expireAfterSeconds", index.getNumber("expire_after_seconds"));
+    }
+    return new JsonObject().putObject("keys", index.getObject("keys")).putObject("options", options);
+  }
+
+  private void createIndex(String collection, JsonObject spec) {
+    JsonObject keys = spec.getObject("keys");
+    if (keys == null) {
+      throw new IllegalArgumentException("index must specify keys");
+    }
+    JsonObject options = spec.getObject("options", new JsonObject()).copy();
+    if (options.getField("background") == null) {
+      options.putBoolean("background", true);
+    }
+    db.getCollection(collection).createIndex(jsonToDBObject(keys), jsonToDBObject(options));
+  }
+
+  /**
+   * @return the collections a query on a collection covers, which are its buckets (oldest first) if it is routed
+   */
+  private List<String> getReadCollections(String collection, JsonObject matcher) {
+    if (router != null && router.isRouted(collection)) {
+      return router.getBuckets(collection, matcher, getCollectionNames());
+    }
+    return Collections.singletonList(collection);
+  }
+
+  /**
+   * Replies with an error for an operation which can't be spread over the buckets of a routed collection
+   *
+   * @return true if the collection is routed
+   */
+  private boolean rejectRouted(Message<JsonObject> message, String collection) {
+    if (router != null && router.isRouted(collection)) {
+      sendError(message, message.body().getString("action") + " is not supported on routed collection " + collection);
+      return true;
+    }
+    return false;
   }
 
   private List<ServerAddress> makeSeeds(JsonArray seedsProperty) throws UnknownHostException {
@@ -114,13 +661,268 @@ public class MongoPersistor extends BusModBase implements Handler<Message<JsonOb
     return seeds;
   }
 
+  private void openJournal(JsonObject writeBehind) {
+    String path = writeBehind.getString("journal_file", "mongo-persistor.journal");
+    try {
+      journal = new WriteBehindJournal(new File(path), writeBehind.getInteger("journal_size", 64 * 1024 * 1024),
+          writeBehind.getBoolean("sync", false));
+    } catch (IOException e) {
+      logger.error("Failed to open write-behind journal " + path + ", saves will be written directly", e);
+      return;
+    }
+    writeBehindCollections = new HashSet<>();
+    for (Object collection : writeBehind.getArray("collections", new JsonArray())) {
+      writeBehindCollections.add((String) collection);
+    }
+    drainBatchSize = writeBehind.getInteger("drain_batch_size", 500);
+    deadLetterCollection = writeBehind.getString("dead_letter_collection", "write_behind_dead_letters");
+    if (!journal.isEmpty()) {
+      logger.info("Replaying " + journal.getPendingBytes() + " bytes of write-behind journal " + path);
+    }
+    vertx.setPeriodic(writeBehind.getLong("drain_interval", 100), new Handler<Long>() {
+      @Override
+      public void handle(Long timerID) {
+        drainJournal();
+      }
+    });
+  }
+
+  /**
+   * Applies the saves in the write-behind journal to MongoDB, a batch at a time. If a batch fails it stays in the
+   * journal and is tried again on the next drain. Saves replace the whole document by its _id, so applying one
+   * more than once does no harm, as long as no other write to the document came after it. A save which MongoDB
+   * will never accept, such as one breaking a unique index, is moved to the dead letter collection instead, so it
+   * doesn't hold up the saves after it.
+   */
+  private void drainJournal() {
+    if (db == null || !drainLock.tryLock()) {
+      return;
+    }
+    try {
+      applyJournal();
+    } finally {
+      drainLock.unlock();
+    }
+  }
+
+  /**
+   * Makes sure a write to a write-behind collection comes after the saves to it which were acknowledged before, by
+   * applying the journal first. Otherwise a save could be applied after a later update or delete and undo it.
+   *
+   * @return false, after replying with an error, if the journal couldn't be applied
+   */
+  private boolean flushWriteBehind(Message<JsonObject> message, String collection) {
+    if (journal == null || !writeBehindCollections.contains(collection)) {
+      return true;
+    }
+    drainLock.lock();
+    try {
+      if (applyJournal()) {
+        return true;
+      }
+    } finally {
+      drainLock.unlock();
+    }
+    sendError(message, "the write-behind journal of " + collection + " could not be applied, try again later");
+    return false;
+  }
+
+  /**
+   * Must be called holding the drain lock
+   *
+   * @return true if the journal was emptied
+   */
+  private boolean applyJournal() {
+    try {
+      while (true) {
+        WriteBehindJournal.Batch batch = journal.read(drainBatchSize);
+        if (batch.getEntries().isEmpty()) {
+          break;
+        }
+        Map<String, List<JsonObject>> saves = new LinkedHashMap<>();
+        for (JsonObject entry : batch.getEntries()) {
+          String collection = entry.getString("collection");
+          List<JsonObject> entries = saves.get(collection);
+          if (entries == null) {
+            entries = new ArrayList<>();
+            saves.put(collection, entries);
+          }
+          entries.add(entry);
+        }
+        WriteConcern writeConcern = getWriteConcern();
+        if (!writeConcern.callGetLastError()) {
+          // We must know the writes made it before they leave the journal
+          writeConcern = WriteConcern.ACKNOWLEDGED;
+        }
+        for (Map.Entry<String, List<JsonObject>> collection : saves.entrySet()) {
+          applySaves(collection.getKey(), collection.getValue(), writeConcern);
+        }
+        journal.commit(batch);
+      }
+      return true;
+    } catch (MongoException e) {
+      logger.error("Failed to apply write-behind journal, will try again", e);
+      return false;
+    }
+  }
+
+  /**
+   * Writes journaled saves to a collection in order. An ordered bulk write stops at the first save which fails, so
+   * if that save was rejected it is moved aside and the bulk write carries on with the saves after it.
+   *
+   * @throws MongoException if a save failed for a reason which may go away, in which case all of them are tried
+   * again later
+   */
+  private void applySaves(String collection, List<JsonObject> entries, WriteConcern writeConcern) {
+    DBCollection coll = db.getCollection(collection);
+    int from = 0;
+    boolean oneByOne = false;
+    while (from < entries.size()) {
+      int to = oneByOne ? from + 1 : entries.size();
+      try {
+        BulkWriteOperation operation = coll.initializeOrderedBulkOperation();
+        for (JsonObject entry : entries.subList(from, to)) {
+          DBObject obj = jsonToDBObject(entry.getObject("document"));
+          operation.find(new BasicDBObject("_id", obj.get("_id"))).upsert().replaceOne(obj);
+        }
+        operation.execute(writeConcern);
+        from = to;
+      } catch (BulkWriteException e) {
+        if (e.getWriteConcernError() != null || e.getWriteErrors().isEmpty()
+            || isTransient(e.getWriteErrors().get(0))) {
+          throw e;
+        }
+        BulkWriteError error = e.getWriteErrors().get(0);
+        int rejected = from + error.getIndex();
+        deadLetter(collection, entries.get(rejected), error.getCode(), error.getMessage());
+        from = rejected + 1;
+      } catch (IllegalArgumentException e) {
+        // The driver refused a document before sending anything, without saying which one, so look for it by
+        // writing the rest of the saves one at a time
+        if (!oneByOne) {
+          oneByOne = true;
+          continue;
+        }
+        deadLetter(collection, entries.get(from), 0, e.getMessage());
+        from++;
+      }
+    }
+  }
+
+  private static boolean isTransient(BulkWriteError error) {
+    // A duplicate _id can only come from another upsert of the same document, which is over if we try again
+    return TRANSIENT_WRITE_CODES.contains(error.getCode())
+        || error.getCode() == 11000 && error.getMessage() != null && error.getMessage().contains("_id_");
+  }
+
+  /**
+   * Keeps a save which MongoDB rejected, with the reason, in the dead letter collection. The document is kept as
+   * its JSON text, as it may be the document itself which can't be stored.
+   */
+  private void deadLetter(String collection, JsonObject entry, int code, String reason) {
+    logger.error("Write-behind save to " + collection + " was rejected, moving it to " + deadLetterCollection + ": "
+        + reason + ", document " + entry.getObject("document").encode());
+    db.getCollection(deadLetterCollection).insert(new BasicDBObject("collection", collection)
+        .append("document", entry.getObject("document").encode())
+        .append("code", code)
+        .append("error", reason)
+        .append("time", new Date()), WriteConcern.ACKNOWLEDGED);
+  }
+
   @Override
   public void stop() {
+    if (incCombiner != null && db != null) {
+      // The windows of the pending updates won't end now, so write them while their senders can still be told
+      for (IncCombiner.Combined combined : incCombiner.takeAll()) {
+        writeCombined(combined);
+      }
+    }
+    if (nearCache != null) {
+      nearCache.stop();
+    }
+    if (latencyRouter != null) {
+      latencyRouter.close();
+    }
+    if (journal != null) {
+      drainJournal();
+      try {
+        journal.close();
+      } catch (IOException e) {
+        logger.error("Failed to close write-behind journal", e);
+      }
+    }
+    synchronized (this) {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+      if (partitionExecutor != null) {
+        partitionExecutor.shutdownNow();
+      }
+      if (jobExecutor != null) {
+        jobExecutor.shutdownNow();
+      }
+    }
     if (mongo != null) {
       mongo.close();
     }
   }
 
+  /**
+   * The executor used to run work in parallel, for example the operations of a batch.
+   * It is only created when first needed, and is sized by the worker_threads config
+   */
+  protected synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      final AtomicInteger threadCount = new AtomicInteger();
+      executor = Executors.newFixedThreadPool(workerThreads, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "mongo-persistor-worker-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return executor;
+  }
+
+  /**
+   * The executor which queries the collections of a find across several collections. A find can itself be run on
+   * the worker executor, for example as an operation of a parallel batch, so if the queries were run there as well
+   * every worker could end up waiting for queries which no thread is left to run.
+   */
+  private synchronized ExecutorService getPartitionExecutor() {
+    if (partitionExecutor == null) {
+      final AtomicInteger threadCount = new AtomicInteger();
+      partitionExecutor = Executors.newFixedThreadPool(workerThreads, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "mongo-persistor-partition-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return partitionExecutor;
+  }
+
+  /**
+   * Background jobs run one at a time on a thread of their own, so they neither add up nor hold up requests
+   */
+  private synchronized ExecutorService getJobExecutor() {
+    if (jobExecutor == null) {
+      jobExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "mongo-persistor-job");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return jobExecutor;
+  }
+
   @Override
   public void handle(Message<JsonObject> message) {
     String action = message.body().getString("action");
@@ -130,6 +932,16 @@ public class MongoPersistor extends BusModBase implements Handler<Message<JsonOb
       return;
     }
 
+    // Actions which don't go to MongoDB themselves aren't guarded, the operations of a batch are guarded one by one
+    boolean guarded = circuitBreaker != null && !LOCAL_ACTIONS.contains(action);
+    if (guarded && !circuitBreaker.allowRequest(System.currentTimeMillis())) {
+      failFast(message, action);
+      return;
+    }
+    errorSent.set(Boolean.FALSE);
+    boolean outage = false;
+    boolean answered = false;
+
     try {
 
       // Note actions should not be in camel case, but should use underscores
@@ -148,6 +960,9 @@ public class MongoPersistor extends BusModBase implements Handler<Message<JsonOb
         case "findone":
           doFindOne(message);
           break;
+        case "find_by_ids":
+          doFindByIds(message);
+          break;
         // no need for a backwards compatible "findAndModify" since this feature was added after
         case "find_and_modify":
           doFindAndModify(message);
@@ -158,6 +973,9 @@ public class MongoPersistor extends BusModBase implements Handler<Message<JsonOb
         case "count":
           doCount(message);
           break;
+        case "distinct":
+          doDistinct(message);
+          break;
         case "getCollections":
         case "get_collections":
           getCollections(message);
@@ -176,52 +994,151 @@ public class MongoPersistor extends BusModBase implements Handler<Message<JsonOb
         case "command":
           runCommand(message);
           break;
+        case "batch":
+          doBatch(message);
+          break;
+        case "cache_stats":
+          getCacheStats(message);
+          break;
+        case "slow_ops":
+          getSlowOps(message);
+          break;
+        case "ensure_index":
+          ensureIndex(message);
+          break;
+        case "list_indexes":
+          listIndexes(message);
+          break;
+        case "drop_index":
+          dropIndex(message);
+          break;
+        case "latency_stats":
+          getLatencyStats(message);
+          break;
+        case "query_stats":
+          getQueryStats(message);
+          break;
+        case "index_advice":
+          getIndexAdvice(message);
+          break;
+        case "circuit_status":
+          getCircuitStatus(message);
+          break;
+        case "pool_stats":
+          getPoolStats(message);
+          break;
+        case "job_status":
+          getJobStatus(message);
+          break;
+        case "cancel_job":
+          cancelJob(message);
+          break;
         default:
           sendError(message, "Invalid action: " + action);
       }
     } catch (MongoException e) {
+      outage = CircuitBreaker.isOutage(e);
+      answered = !outage;
       sendError(message, e.getMessage(), e);
+    } catch (IllegalArgumentException e) {
+      sendError(message, e.getMessage());
+    } finally {
+      if (guarded) {
+        // A request turned down before it reached MongoDB, for being invalid, says nothing about whether it is up
+        if (outage) {
+          circuitBreaker.onFailure(System.currentTimeMillis());
+        } else if (answered || !errorSent.get()) {
+          circuitBreaker.onSuccess(System.currentTimeMillis());
+        } else {
+          circuitBreaker.onAbandoned();
+        }
+      }
     }
   }
 
+  @Override
+  protected void sendError(Message<JsonObject> message, String error) {
+    errorSent.set(Boolean.TRUE);
+    super.sendError(message, error);
+  }
+
+  @Override
+  protected void sendError(Message<JsonObject> message, String error, Exception e) {
+    errorSent.set(Boolean.TRUE);
+    super.sendError(message, error, e);
+  }
+
+  /**
+   * Answers a request straight away while the circuit breaker is open. A findone by _id is answered from the near
+   * cache if the document is there, however old it is, and the reply is marked as stale.
+   */
+  private void failFast(Message<JsonObject> message, String action) {
+    if (serveStale && "findone".equals(action) && message.body().getObject("keys") == null) {
+      String collection = message.body().getString("collection");
+      Object cacheId = collection == null ? null : getCacheableId(collection, message.body().getObject("matcher"));
+      JsonObject stale = cacheId == null ? null : nearCache.getStale(collection, cacheId);
+      if (stale != null) {
+        sendOK(message, new JsonObject().putObject("result", stale).putBoolean("stale", true));
+        return;
+      }
+    }
+    sendError(message, "circuit breaker is open");
+  }
+
   private void doSave(Message<JsonObject> message) {
     String collection = getMandatoryString("collection", message);
     if (collection == null) {
       return;
     }
+    // A write-behind save is acknowledged once it is journaled. Other writes to the collection apply the journal
+    // before they run, so they stay in order with it, but reads don't see the save until it has been applied.
+    boolean writeBehind = journal != null && writeBehindCollections.contains(collection);
     JsonObject doc = getMandatoryObject("document", message);
     if (doc == null) {
       return;
     }
-    String genID;
+    Object genID;
     if (doc.getField("_id") == null) {
-      genID = UUID.randomUUID().toString();
-      doc.putString("_id", genID);
+      genID = idGenerator.generate();
+      doc.putValue("_id", genID);
     } else {
       genID = null;
     }
-    DBCollection coll = db.getCollection(collection);
-    DBObject obj = jsonToDBObject(doc);
-    WriteConcern writeConcern = WriteConcern.valueOf(getOptionalStringConfig("writeConcern", ""));
-    // Backwards compatibility
-    if (writeConcern == null) {
-      writeConcern = WriteConcern.valueOf(getOptionalStringConfig("write_concern", ""));
-    }
-    if (writeConcern == null) {
-      writeConcern = db.getWriteConcern();
+    // Reads and their caches go by the routed collection, the document is written to its bucket
+    String target = collection;
+    if (router != null && router.isRouted(collection)) {
+      target = router.getBucket(collection, doc);
+      if (target == null) {
+        sendError(message, "document must have a date in " + router.getDateField(collection));
+        return;
+      }
+      collectionNames.add(target);
     }
+    String error;
+    WriteResult res = null;
+    if (writeBehind) {
+      JsonObject entry = new JsonObject().putString("collection", target).putObject("document", doc);
+      error = journal.append(entry) ? null : "write-behind journal is full";
+    } else {
+      DBCollection coll = db.getCollection(target);
+      DBObject obj = jsonToDBObject(doc);
+      WriteConcern writeConcern = getWriteConcern();
 
-    WriteResult res = coll.save(obj, writeConcern);
-    if (res.getError() == null) {
+      res = coll.save(obj, writeConcern);
+      error = res.getError();
+    }
+    invalidateCached(collection, doc);
+    if (error == null) {
+      JsonObject reply = new JsonObject();
       if (genID != null) {
-        JsonObject reply = new JsonObject();
-        reply.putString("_id", genID);
-        sendOK(message, reply);
-      } else {
-        sendOK(message);
+        reply.putValue("_id", genID);
       }
+      if (res != null) {
+        putOpTime(reply, res);
+      }
+      sendOK(message, reply);
     } else {
-      sendError(message, res.getError());
+      sendError(message, error);
     }
   }
 
@@ -243,31 +1160,124 @@ public class MongoPersistor extends BusModBase implements Handler<Message<JsonOb
     DBObject objNew = jsonToDBObject(objNewJson);
     Boolean upsert = message.body().getBoolean("upsert", false);
     Boolean multi = message.body().getBoolean("multi", false);
-    DBCollection coll = db.getCollection(collection);
-    WriteConcern writeConcern = WriteConcern.valueOf(getOptionalStringConfig("writeConcern", ""));
-    // Backwards compatibility
-    if (writeConcern == null) {
-      writeConcern = WriteConcern.valueOf(getOptionalStringConfig("write_concern", ""));
+    boolean routed = router != null && router.isRouted(collection);
+    if (routed && upsert) {
+      // The document to insert might not have a date to choose its bucket by
+      sendError(message, "upsert is not supported on routed collection " + collection);
+      return;
     }
-
-    if (writeConcern == null) {
-      writeConcern = db.getWriteConcern();
+    if (!flushWriteBehind(message, collection)) {
+      return;
+    }
+    if (message.body().getBoolean("background", false)) {
+      if (upsert) {
+        sendError(message, "upsert is not supported by background updates");
+        return;
+      }
+      // A job updates every matching document, and a replacement would make them all the same document
+      if (!multi) {
+        sendError(message, "background updates must be multi");
+        return;
+      }
+      if (!hasOnlyOperators(objNewJson)) {
+        sendError(message, "background updates must use update operators, not replace the document");
+        return;
+      }
+      if (routed) {
+        sendError(message, "background updates are not supported on routed collection " + collection);
+        return;
+      }
+      startUpdateJob(message, collection, db.getCollection(collection), criteria, criteriaJson, objNew);
+      return;
     }
-    WriteResult res = coll.update(criteria, objNew, upsert, multi, writeConcern);
-    if (res.getError() == null) {
+    // Operations of a batch must reply straight away, so they aren't combined
+    if (incCombiner != null && !routed && !(message instanceof BatchMessage)
+        && incCombiner.canCombine(collection, criteriaJson, objNewJson, multi)) {
+      final String key = incCombiner.add(collection, criteriaJson, objNewJson, upsert, message);
+      if (key != null) {
+        vertx.setTimer(incCombiningWindow, new Handler<Long>() {
+          @Override
+          public void handle(Long timerID) {
+            IncCombiner.Combined combined = incCombiner.take(key);
+            // It is gone if it was written on shutdown
+            if (combined != null) {
+              writeCombined(combined);
+            }
+          }
+        });
+      }
+      return;
+    }
+    long start = System.nanoTime();
+    WriteConcern writeConcern = getWriteConcern();
+    List<String> collections = getReadCollections(collection, criteriaJson);
+    WriteResult res = null;
+    String error = null;
+    int updated = 0;
+    // The newest bucket first, so an update of a single document changes the one findone would return
+    for (int i = collections.size() - 1; i >= 0 && error == null && (multi || updated == 0); i--) {
+      res = db.getCollection(collections.get(i)).update(criteria, objNew, upsert, multi, writeConcern);
+      error = res.getError();
+      updated += res.getN();
+    }
+    recordQuery(collection, criteriaJson, null, start);
+    invalidateCached(collection, criteriaJson);
+    if (error == null) {
       JsonObject reply = new JsonObject();
-      reply.putNumber("number", res.getN());
+      reply.putNumber("number", updated);
+      putOpTime(reply, res);
       sendOK(message, reply);
     } else {
-      sendError(message, res.getError());
+      sendError(message, error);
+    }
+  }
+
+  /**
+   * Writes the summed increments of combined updates, and sends each of the updates the reply it would have got
+   * on its own
+   */
+  private void writeCombined(IncCombiner.Combined combined) {
+    List<Message<JsonObject>> messages = combined.getMessages();
+    try {
+      DBCollection coll = db.getCollection(combined.getCollection());
+      WriteResult res = coll.update(jsonToDBObject(combined.getCriteria()), jsonToDBObject(combined.getObjNew()),
+          combined.isUpsert(), false, getWriteConcern());
+      invalidateCached(combined.getCollection(), combined.getCriteria());
+      if (res.getError() == null) {
+        for (Message<JsonObject> message : messages) {
+          JsonObject reply = new JsonObject();
+          reply.putNumber("number", res.getN());
+          putOpTime(reply, res);
+          sendOK(message, reply);
+        }
+      } else {
+        for (Message<JsonObject> message : messages) {
+          sendError(message, res.getError());
+        }
+      }
+    } catch (MongoException e) {
+      logger.error("Failed to write combined update", e);
+      for (Message<JsonObject> message : messages) {
+        sendError(message, e.getMessage());
+      }
     }
   }
 
   private void doFind(Message<JsonObject> message) {
-    String collection = getMandatoryString("collection", message);
-    if (collection == null) {
+    long start = System.nanoTime();
+    long maxTime = getMaxTime(message);
+    if (maxTime < 0) {
+      sendError(message, "deadline exceeded");
       return;
     }
+    List<String> partitions = getPartitions(message);
+    String collection = null;
+    if (partitions == null) {
+      collection = getMandatoryString("collection", message);
+      if (collection == null) {
+        return;
+      }
+    }
     Integer limit = (Integer) message.body().getNumber("limit");
     if (limit == null) {
       limit = -1;
@@ -287,36 +1297,467 @@ public class MongoPersistor extends BusModBase implements Handler<Message<JsonOb
     JsonObject matcher = message.body().getObject("matcher");
     JsonObject keys = message.body().getObject("keys");
 
-    Object hint = message.body().getField("hint");
-    Object sort = message.body().getField("sort");
-    DBCollection coll = db.getCollection(collection);
-    DBCursor cursor;
-    if (matcher != null) {
-      cursor = (keys == null) ?
-          coll.find(jsonToDBObject(matcher)) :
-          coll.find(jsonToDBObject(matcher), jsonToDBObject(keys));
-    } else {
-      cursor = coll.find();
+    ReadPreference preference = getReadPreference(message);
+    Object hint = message.body().getField("hint");
+    Object sort = message.body().getField("sort");
+    DBObject sortObject = sort == null ? null : sortObjectToDBObject(sort);
+    Cursor cursor;
+    if (partitions == null) {
+      List<String> members = getLatencyMembers(preference);
+      if (members.isEmpty()) {
+        DBCursor dbCursor = createCursor(db.getCollection(collection), matcher, keys, hint, sortObject, maxTime, preference);
+        if (skip != -1) {
+          dbCursor.skip(skip);
+        }
+        if (limit != -1) {
+          dbCursor.limit(limit);
+        }
+        cursor = dbCursor;
+      } else {
+        cursor = latencyRouter.read(members, findRead(collection, matcher, keys, hint, sortObject, skip, limit, maxTime));
+      }
+    } else {
+      cursor = createMergedCursor(partitions, matcher, keys, hint, sortObject, skip, limit, maxTime, preference);
+    }
+    int returned = sendBatch(message, cursor, batchSize, timeout, isBufferReply(message));
+    if (partitions == null || router != null && router.isRouted(message.body().getString("collection"))) {
+      recordQuery(message.body().getString("collection"), matcher, sort, start);
+    }
+    if (slowOpLog != null) {
+      Callable<DBObject> explain = null;
+      if (partitions == null) {
+        explain = explainFind(collection, matcher, keys, hint, sortObject, skip, limit);
+      } else {
+        collection = message.body().getString("collection", partitions.toString());
+      }
+      recordSlowOp("find", collection, matcher, sort, start, returned, explain);
+    }
+  }
+
+  /**
+   * Adds a query to the query shape statistics, if they are kept
+   */
+  private void recordQuery(String collection, JsonObject matcher, Object sort, long start) {
+    if (queryStats != null) {
+      queryStats.record(collection, matcher, sort, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * A find which is sent to a single member. It fetches the first batch, so the member which returns it first wins.
+   */
+  private LatencyRouter.Read<DBCursor> findRead(final String collection, final JsonObject matcher,
+                                                final JsonObject keys, final Object hint, final DBObject sort,
+                                                final int skip, final int limit, final long maxTime) {
+    return new LatencyRouter.Read<DBCursor>() {
+      @Override
+      public DBCursor run(DB memberDb) {
+        DBCursor cursor = createCursor(memberDb.getCollection(collection), matcher, keys, hint, sort, maxTime, null);
+        if (skip != -1) {
+          cursor.skip(skip);
+        }
+        if (limit != -1) {
+          cursor.limit(limit);
+        }
+        cursor.hasNext();
+        return cursor;
+      }
+
+      @Override
+      public void discard(DBCursor cursor) {
+        cursor.close();
+      }
+    };
+  }
+
+  private Callable<DBObject> explainFind(final String collection, final JsonObject matcher, final JsonObject keys,
+                                         final Object hint, final DBObject sort, final int skip, final int limit) {
+    return new Callable<DBObject>() {
+      @Override
+      public DBObject call() {
+        DBCursor cursor = createCursor(db.getCollection(collection), matcher, keys, hint, sort, 0, null);
+        if (skip != -1) {
+          cursor.skip(skip);
+        }
+        if (limit != -1) {
+          cursor.limit(limit);
+        }
+        return cursor.explain();
+      }
+    };
+  }
+
+  /**
+   * Records an operation in the slow operation log if it took longer than the threshold. A sample of the records
+   * also get the plan of the query, which is captured on the executor so the reply isn't held up by it.
+   *
+   * @param explain returns the plan of the query, or is null if the plan can't be captured
+   */
+  private void recordSlowOp(String action, String collection, JsonObject matcher, Object sort, long start,
+                            long returned, final Callable<DBObject> explain) {
+    long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    if (!slowOpLog.isSlow(duration)) {
+      return;
+    }
+    final JsonObject record = new JsonObject()
+        .putString("action", action)
+        .putString("collection", collection)
+        .putObject("shape", QueryShape.normalise(matcher))
+        .putNumber("duration_ms", duration)
+        .putNumber("returned", returned)
+        .putNumber("timestamp", System.currentTimeMillis());
+    if (sort != null) {
+      record.putValue("sort", sort);
+    }
+    logger.warn("Slow " + action + " on " + collection + " took " + duration + "ms, shape "
+        + record.getObject("shape").encode());
+    if (explain == null || !slowOpLog.shouldExplain()) {
+      addSlowOp(record);
+      return;
+    }
+    getExecutor().execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          DBObject plan = explain.call();
+          Number scanned = getScanned(plan);
+          if (scanned != null) {
+            record.putNumber("scanned", scanned);
+          }
+          record.putObject("plan", MongoUtil.convertBsonToJson(plan));
+        } catch (Exception e) {
+          record.putString("explain_error", e.getMessage());
+        }
+        addSlowOp(record);
+      }
+    });
+  }
+
+  private void addSlowOp(JsonObject record) {
+    slowOpLog.add(record);
+    if (slowOpLog.getAddress() != null) {
+      eb.publish(slowOpLog.getAddress(), record);
+    }
+  }
+
+  /**
+   * @return the number of documents a query examined according to its plan, which is reported differently
+   * before and after MongoDB 3.0
+   */
+  private static Number getScanned(DBObject plan) {
+    Object scanned = plan.get("nscannedObjects");
+    if (scanned == null && plan.get("executionStats") instanceof DBObject) {
+      scanned = ((DBObject) plan.get("executionStats")).get("totalDocsExamined");
+    }
+    return scanned instanceof Number ? (Number) scanned : null;
+  }
+
+  private void getLatencyStats(Message<JsonObject> message) {
+    JsonObject reply = new JsonObject();
+    if (latencyRouter != null) {
+      reply.putObject("latency_routing", latencyRouter.getStats());
+    }
+    sendOK(message, reply);
+  }
+
+  private void getPoolStats(Message<JsonObject> message) {
+    JsonObject reply = new JsonObject().putObject("pools", poolMonitor.sample());
+    JsonArray servers = new JsonArray();
+    for (ServerAddress server : mongo.getServerAddressList()) {
+      servers.addString(server.toString());
+    }
+    reply.putArray("seeds", servers);
+    ReplicaSetStatus replicaSet = mongo.getReplicaSetStatus();
+    if (replicaSet != null) {
+      ServerAddress master = replicaSet.getMaster();
+      reply.putObject("replica_set", new JsonObject()
+          .putString("name", replicaSet.getName())
+          .putString("primary", master == null ? null : master.toString()));
+    }
+    sendOK(message, reply);
+  }
+
+  private void getCircuitStatus(Message<JsonObject> message) {
+    JsonObject reply = new JsonObject();
+    if (circuitBreaker != null) {
+      reply.putObject("circuit_breaker", circuitBreaker.getStats());
+    }
+    sendOK(message, reply);
+  }
+
+  private void getQueryStats(Message<JsonObject> message) {
+    JsonArray shapes = new JsonArray();
+    if (queryStats != null) {
+      shapes = queryStats.getStats(message.body().getString("collection"), message.body().getInteger("limit", 100));
+    }
+    sendOK(message, new JsonObject().putArray("shapes", shapes));
+  }
+
+  /**
+   * Suggests the indexes which are missing for the query shapes seen so far. The indexes of a routed collection
+   * are those of its newest bucket.
+   */
+  private void getIndexAdvice(Message<JsonObject> message) {
+    JsonArray advice = new JsonArray();
+    if (queryStats != null) {
+      String only = message.body().getString("collection");
+      // Shapes of collections without index information aren't advised on
+      Map<String, List<JsonObject>> indexes = new HashMap<>();
+      for (String collection : queryStats.getCollections()) {
+        if (only != null && !only.equals(collection)) {
+          continue;
+        }
+        List<String> collections = getReadCollections(collection, null);
+        if (collections.isEmpty()) {
+          continue;
+        }
+        List<JsonObject> keys = new ArrayList<>();
+        for (DBObject index : db.getCollection(collections.get(collections.size() - 1)).getIndexInfo()) {
+          keys.add(MongoUtil.convertIndexKeys(index));
+        }
+        indexes.put(collection, keys);
+      }
+      advice = queryStats.getAdvice(indexes, message.body().getInteger("limit", 20));
+    }
+    sendOK(message, new JsonObject().putArray("indexes", advice));
+  }
+
+  private void getSlowOps(Message<JsonObject> message) {
+    JsonArray operations = new JsonArray();
+    if (slowOpLog != null) {
+      operations = slowOpLog.getRecords(message.body().getString("collection"),
+          message.body().getInteger("limit", 100));
+    }
+    sendOK(message, new JsonObject().putArray("operations", operations));
+  }
+
+  /**
+   * @param maxTime the time in milliseconds the query may run for on the server, or 0 for no limit
+   * @param preference the read preference of the query, or null for the default
+   */
+  private DBCursor createCursor(DBCollection coll, JsonObject matcher, JsonObject keys, Object hint, DBObject sort,
+                                long maxTime, ReadPreference preference) {
+    DBCursor cursor;
+    if (matcher != null) {
+      cursor = (keys == null) ?
+          coll.find(jsonToDBObject(matcher)) :
+          coll.find(jsonToDBObject(matcher), jsonToDBObject(keys));
+    } else {
+      cursor = coll.find();
+    }
+    if (sort != null) {
+      cursor.sort(sort);
+    }
+    if (maxTime > 0) {
+      cursor.maxTime(maxTime, TimeUnit.MILLISECONDS);
+    }
+    if (preference != null) {
+      cursor.setReadPreference(preference);
+    }
+    if (hint != null) {
+      if (hint instanceof JsonObject) {
+        cursor.hint(jsonToDBObject((JsonObject) hint));
+      } else if (hint instanceof String) {
+        cursor.hint((String) hint);
+      } else {
+        throw new IllegalArgumentException("Cannot handle type " + hint.getClass().getSimpleName());
+      }
+    }
+    return cursor;
+  }
+
+  /**
+   * A find can be run across several collections, for example one per day, by giving either a list of
+   * collections or a pattern the collection names must match instead of a single collection
+   *
+   * @return the collections to query, or null if the find is on a single collection
+   */
+  private List<String> getPartitions(Message<JsonObject> message) {
+    String routed = message.body().getString("collection");
+    if (router != null && router.isRouted(routed)) {
+      return getReadCollections(routed, message.body().getObject("matcher"));
+    }
+    JsonArray collections = message.body().getArray("collections");
+    String pattern = message.body().getString("collection_pattern");
+    if (collections == null && pattern == null) {
+      return null;
+    }
+    List<String> partitions = new ArrayList<>();
+    if (collections != null) {
+      for (Object collection : collections) {
+        if (!(collection instanceof String)) {
+          throw new IllegalArgumentException("Cannot handle collection of type "
+              + (collection == null ? "null" : collection.getClass().getSimpleName()));
+        }
+        partitions.add((String) collection);
+      }
+    }
+    if (pattern != null) {
+      Pattern namePattern = Pattern.compile(pattern);
+      for (String name : db.getCollectionNames()) {
+        if (namePattern.matcher(name).matches() && !partitions.contains(name)) {
+          partitions.add(name);
+        }
+      }
+    }
+    return partitions;
+  }
+
+  private Cursor createMergedCursor(List<String> partitions, JsonObject matcher, JsonObject keys, Object hint,
+                                    DBObject sort, int skip, int limit, long maxTime,
+                                    ReadPreference preference) {
+    final List<DBCursor> cursors = new ArrayList<>();
+    for (String partition : partitions) {
+      DBCursor cursor = createCursor(db.getCollection(partition), matcher, keys, hint, sort, maxTime, preference);
+      if (limit != -1) {
+        // No partition can contribute more than skip + limit documents to the merged result
+        cursor.limit(limit + Math.max(skip, 0));
+      }
+      cursors.add(cursor);
+    }
+
+    // Issue the queries against all the partitions at once rather than one after the other
+    if (cursors.size() > 1) {
+      List<Callable<Boolean>> tasks = new ArrayList<>();
+      for (final DBCursor cursor : cursors) {
+        tasks.add(new Callable<Boolean>() {
+          @Override
+          public Boolean call() {
+            return cursor.hasNext();
+          }
+        });
+      }
+      try {
+        for (Future<Boolean> result : getPartitionExecutor().invokeAll(tasks)) {
+          result.get();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        closeAll(cursors);
+        throw new MongoException("Interrupted while querying partitions");
+      } catch (ExecutionException e) {
+        closeAll(cursors);
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw new MongoException(e.getCause().getMessage());
+      }
+    }
+    return new MergedCursor(cursors, sort, skip, limit);
+  }
+
+  private void closeAll(List<? extends Cursor> cursors) {
+    for (Cursor cursor : cursors) {
+      try {
+        cursor.close();
+      } catch (Exception ignore) {
+      }
+    }
+  }
+
+  private void doBatch(Message<JsonObject> message) {
+    JsonArray operations = message.body().getArray("operations");
+    if (operations == null) {
+      sendError(message, "operations must be specified");
+      return;
+    }
+    boolean parallel = message.body().getBoolean("parallel", false);
+    Number deadline = message.body().getNumber("deadline");
+
+    final List<BatchMessage> subMessages = new ArrayList<>();
+    for (Object operation : operations) {
+      if (!(operation instanceof JsonObject)) {
+        sendError(message, "Cannot handle operation of type " + (operation == null ? "null" : operation.getClass().getSimpleName()));
+        return;
+      }
+      JsonObject body = (JsonObject) operation;
+      // The operations share the deadline of the batch, unless they have their own
+      if (deadline != null && body.getField("deadline") == null) {
+        body = body.copy().putNumber("deadline", deadline);
+      }
+      subMessages.add(new BatchMessage(body));
+    }
+
+    if (parallel && subMessages.size() > 1) {
+      List<Callable<Void>> tasks = new ArrayList<>();
+      for (final BatchMessage subMessage : subMessages) {
+        tasks.add(new Callable<Void>() {
+          @Override
+          public Void call() {
+            runBatchOperation(subMessage);
+            return null;
+          }
+        });
+      }
+      try {
+        getExecutor().invokeAll(tasks);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        sendError(message, "Interrupted while running batch", e);
+        return;
+      }
+    } else {
+      for (BatchMessage subMessage : subMessages) {
+        runBatchOperation(subMessage);
+      }
+    }
+
+    JsonArray results = new JsonArray();
+    for (BatchMessage subMessage : subMessages) {
+      JsonObject result = subMessage.getReply();
+      if (result == null) {
+        result = new JsonObject().putString("status", "error").putString("message", "No reply");
+      }
+      results.addObject(result);
+    }
+    JsonObject reply = new JsonObject();
+    reply.putArray("results", results);
+    sendOK(message, reply);
+  }
+
+  private void runBatchOperation(BatchMessage subMessage) {
+    if ("batch".equals(subMessage.body().getString("action"))) {
+      sendError(subMessage, "batch operations cannot be nested");
+      return;
     }
-    if (skip != -1) {
-      cursor.skip(skip);
+    try {
+      handle(subMessage);
+    } catch (Exception e) {
+      sendError(subMessage, e.getMessage(), e);
     }
-    if (limit != -1) {
-      cursor.limit(limit);
+  }
+
+  private WriteConcern getWriteConcern() {
+    WriteConcern writeConcern = WriteConcern.valueOf(getOptionalStringConfig("writeConcern", ""));
+    // Backwards compatibility
+    if (writeConcern == null) {
+      writeConcern = WriteConcern.valueOf(getOptionalStringConfig("write_concern", ""));
     }
-    if (sort != null) {
-      cursor.sort(sortObjectToDBObject(sort));
+    if (writeConcern == null) {
+      writeConcern = db.getWriteConcern();
     }
-    if (hint != null) {
-      if (hint instanceof JsonObject) {
-        cursor.hint(jsonToDBObject((JsonObject) hint));
-      } else if (hint instanceof String) {
-        cursor.hint((String) hint);
-      } else {
-        throw new IllegalArgumentException("Cannot handle type " + hint.getClass().getSimpleName());
+    return writeConcern;
+  }
+
+  /**
+   * The time an operation may run for on the server is the max_time_ms of the request, or else the default of its
+   * action, cut short to what is left until the deadline of the request, if it has one
+   *
+   * @return the time in milliseconds, 0 if there is no limit, or -1 if the deadline has already passed
+   */
+  private long getMaxTime(Message<JsonObject> message) {
+    Number requested = message.body().getNumber("max_time_ms");
+    long maxTime = requested != null ? requested.longValue() :
+        defaultMaxTimes.getLong(message.body().getString("action"), defaultMaxTimes.getLong("default", 0));
+    Number deadline = message.body().getNumber("deadline");
+    if (deadline != null) {
+      long remaining = deadline.longValue() - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return -1;
       }
+      maxTime = maxTime > 0 ? Math.min(maxTime, remaining) : remaining;
     }
-    sendBatch(message, cursor, batchSize, timeout);
+    return maxTime;
   }
 
   private DBObject sortObjectToDBObject(Object sortObj) {
@@ -341,17 +1782,39 @@ public class MongoPersistor extends BusModBase implements Handler<Message<JsonOb
     }
   }
 
-  private void sendBatch(Message<JsonObject> message, final DBCursor cursor, final int max, final int timeout) {
+  /**
+   * @return the number of documents sent in this batch
+   */
+  private int sendBatch(Message<JsonObject> message, final Cursor cursor, final int max, final int timeout,
+                        final boolean buffered) {
+    return sendBatch(message, cursor, max, timeout, buffered, null);
+  }
+
+  /**
+   * @param valueField if not null, the value of this field of each document is sent rather than the document
+   */
+  private int sendBatch(Message<JsonObject> message, final Cursor cursor, final int max, final int timeout,
+                        final boolean buffered, final String valueField) {
     int count = 0;
-    JsonArray results = new JsonArray();
+    JsonArray results = buffered ? null : new JsonArray();
+    BatchEncoder encoder = buffered ? new BatchEncoder(useMongoTypes) : null;
     while (cursor.hasNext() && count < max) {
       DBObject obj = cursor.next();
-      JsonObject m = dbObjectToJsonObject(obj);
-      results.add(m);
+      if (buffered) {
+        encoder.add(obj);
+      } else if (valueField != null) {
+        results.add(dbObjectToJsonObject(obj).getField(valueField));
+      } else {
+        results.add(dbObjectToJsonObject(obj));
+      }
       count++;
     }
-    if (cursor.hasNext()) {
-      JsonObject reply = createBatchMessage("more-exist", results);
+    if (cursor.hasNext() && message instanceof BatchMessage) {
+      // Batch operations only get a single reply, so there is no way to ask for more
+      message.reply(createBatchMessage("more-exist", results));
+      cursor.close();
+    } else if (cursor.hasNext()) {
+      Object reply = buffered ? encoder.finish("more-exist") : createBatchMessage("more-exist", results);
 
       // If the user doesn't reply within timeout, close the cursor
       final long timerID = vertx.setTimer(timeout, new Handler<Long>() {
@@ -371,15 +1834,23 @@ public class MongoPersistor extends BusModBase implements Handler<Message<JsonOb
         public void handle(Message<JsonObject> msg) {
           vertx.cancelTimer(timerID);
           // Get the next batch
-          sendBatch(msg, cursor, max, timeout);
+          sendBatch(msg, cursor, max, timeout, buffered, valueField);
         }
       });
 
     } else {
-      JsonObject reply = createBatchMessage("ok", results);
-      message.reply(reply);
+      message.reply(buffered ? encoder.finish("ok") : createBatchMessage("ok", results));
       cursor.close();
     }
+    return count;
+  }
+
+  /**
+   * A find or aggregate can ask for its results as a buffer holding the JSON of the reply, which is cheaper to
+   * build. Operations of a batch always reply with a JSON object, which is part of the batch reply.
+   */
+  private boolean isBufferReply(Message<JsonObject> message) {
+    return "buffer".equals(message.body().getString("reply_format")) && !(message instanceof BatchMessage);
   }
 
   private JsonObject createBatchMessage(String status, JsonArray results) {
@@ -391,30 +1862,241 @@ public class MongoPersistor extends BusModBase implements Handler<Message<JsonOb
   }
 
   private void doFindOne(Message<JsonObject> message) {
+    long start = System.nanoTime();
     String collection = getMandatoryString("collection", message);
     if (collection == null) {
       return;
     }
+    long maxTime = getMaxTime(message);
+    if (maxTime < 0) {
+      sendError(message, "deadline exceeded");
+      return;
+    }
     JsonObject matcher = message.body().getObject("matcher");
     JsonObject keys = message.body().getObject("keys");
-    DBCollection coll = db.getCollection(collection);
-    DBObject res;
-    if (matcher == null) {
-      res = keys != null ? coll.findOne(null, jsonToDBObject(keys)) : coll.findOne();
+    Object cacheId = keys == null ? getCacheableId(collection, matcher) : null;
+    long generation = 0;
+    if (cacheId != null) {
+      JsonObject cached = nearCache.get(collection, cacheId);
+      if (cached != null) {
+        sendOK(message, new JsonObject().putObject("result", cached));
+        return;
+      }
+      generation = nearCache.getGeneration(collection);
+    }
+    ReadPreference preference = getReadPreference(message);
+    List<String> collections = getReadCollections(collection, matcher);
+    DBObject res = null;
+    List<String> members = collections.size() == 1 ? getLatencyMembers(preference) : Collections.<String>emptyList();
+    if (!members.isEmpty()) {
+      res = latencyRouter.read(members, findOneRead(collections.get(0), matcher, keys, maxTime));
     } else {
-      res = keys != null ? coll.findOne(jsonToDBObject(matcher), jsonToDBObject(keys)) : coll.findOne(jsonToDBObject(matcher));
+      // Look in the newest bucket first
+      for (int i = collections.size() - 1; i >= 0 && res == null; i--) {
+        DBCollection coll = db.getCollection(collections.get(i));
+        if (maxTime > 0) {
+          // findOne can't be given a max time, so find a single document instead
+          DBCursor cursor = createCursor(coll, matcher, keys, null, null, maxTime, preference).limit(-1);
+          try {
+            res = cursor.hasNext() ? cursor.next() : null;
+          } finally {
+            cursor.close();
+          }
+        } else if (preference != null) {
+          res = coll.findOne(jsonToDBObjectNullSafe(matcher), jsonToDBObjectNullSafe(keys), preference);
+        } else if (matcher == null) {
+          res = keys != null ? coll.findOne(null, jsonToDBObject(keys)) : coll.findOne();
+        } else {
+          res = keys != null ? coll.findOne(jsonToDBObject(matcher), jsonToDBObject(keys)) : coll.findOne(jsonToDBObject(matcher));
+        }
+      }
     }
+    recordQuery(collection, matcher, null, start);
     JsonObject reply = new JsonObject();
     if (res != null) {
       JsonObject m = new JsonObject(res.toMap());
       reply.putObject("result", m);
+      if (cacheId != null) {
+        nearCache.put(collection, cacheId, m, generation);
+      }
+    }
+    sendOK(message, reply);
+  }
+
+  private LatencyRouter.Read<DBObject> findOneRead(final String collection, final JsonObject matcher,
+                                                  final JsonObject keys, final long maxTime) {
+    return new LatencyRouter.Read<DBObject>() {
+      @Override
+      public DBObject run(DB memberDb) {
+        DBCursor cursor = createCursor(memberDb.getCollection(collection), matcher, keys, null, null, maxTime, null)
+            .limit(-1);
+        try {
+          return cursor.hasNext() ? cursor.next() : null;
+        } finally {
+          cursor.close();
+        }
+      }
+
+      @Override
+      public void discard(DBObject result) {
+      }
+    };
+  }
+
+  private void doFindByIds(Message<JsonObject> message) {
+    String collection = getMandatoryString("collection", message);
+    if (collection == null) {
+      return;
+    }
+    JsonArray ids = message.body().getArray("ids");
+    if (ids == null) {
+      sendError(message, "ids must be specified");
+      return;
+    }
+    if (getMaxTime(message) < 0) {
+      sendError(message, "deadline exceeded");
+      return;
+    }
+    JsonObject keys = message.body().getObject("keys");
+    int chunkSize = message.body().getInteger("chunk_size", 1000);
+    if (chunkSize <= 0) {
+      sendError(message, "chunk_size must be positive");
+      return;
+    }
+    // The near cache holds documents in the form findone returns, which is only the same as ours without mongo types
+    boolean useCache = keys == null && !useMongoTypes && message.body().getBoolean("use_cache", true)
+        && nearCache != null && nearCache.handles(collection) && (router == null || !router.isRouted(collection));
+
+    // Each id is looked up and reported once, however often it is asked for
+    Map<String, Object> uniqueIds = new LinkedHashMap<>();
+    for (Object id : ids) {
+      uniqueIds.put(idKey(id), id);
+    }
+    JsonObject results = new JsonObject();
+    List<Object> toFind = new ArrayList<>();
+    for (Object id : uniqueIds.values()) {
+      JsonObject cached = useCache && isSingleId(id) ? nearCache.get(collection, id) : null;
+      if (cached != null) {
+        results.putObject(idKey(id), cached);
+      } else {
+        toFind.add(id);
+      }
+    }
+    long generation = useCache ? nearCache.getGeneration(collection) : 0;
+    ReadPreference preference = getReadPreference(message);
+
+    for (int start = 0; start < toFind.size(); start += chunkSize) {
+      JsonArray chunk = new JsonArray();
+      for (Object id : toFind.subList(start, Math.min(start + chunkSize, toFind.size()))) {
+        chunk.add(id);
+      }
+      JsonObject matcher = new JsonObject().putObject("_id", new JsonObject().putArray("$in", chunk));
+      for (String name : getReadCollections(collection, matcher)) {
+        // Each query gets what is left until the deadline
+        long maxTime = getMaxTime(message);
+        if (maxTime < 0) {
+          sendError(message, "deadline exceeded");
+          return;
+        }
+        DBCursor cursor = createCursor(db.getCollection(name), matcher, keys, null, null, maxTime, preference);
+        try {
+          while (cursor.hasNext()) {
+            JsonObject doc = dbObjectToJsonObject(cursor.next());
+            Object id = doc.getField("_id");
+            results.putObject(idKey(id), doc);
+            if (useCache && isSingleId(id)) {
+              nearCache.put(collection, id, doc, generation);
+            }
+          }
+        } finally {
+          cursor.close();
+        }
+      }
+    }
+
+    JsonArray missing = new JsonArray();
+    for (Map.Entry<String, Object> id : uniqueIds.entrySet()) {
+      if (results.getField(id.getKey()) == null) {
+        results.putObject(id.getKey(), null);
+        missing.add(id.getValue());
+      }
+    }
+    JsonObject reply = new JsonObject();
+    reply.putObject("results", results);
+    reply.putArray("missing", missing);
+    sendOK(message, reply);
+  }
+
+  /**
+   * @return the key of a document in the results of find_by_ids, which is the id itself for a string id and
+   * its JSON encoding otherwise
+   */
+  private String idKey(Object id) {
+    if (id instanceof String) {
+      return (String) id;
+    }
+    String encoded = new JsonObject().putValue("_id", id).encode();
+    return encoded.substring("{\"_id\":".length(), encoded.length() - 1);
+  }
+
+  /**
+   * @return the _id a matcher looks up if the document can come from the near cache, otherwise null
+   */
+  private Object getCacheableId(String collection, JsonObject matcher) {
+    if (nearCache == null || !nearCache.handles(collection) || matcher == null || matcher.size() != 1) {
+      return null;
+    }
+    if (router != null && router.isRouted(collection)) {
+      // The oplog only knows about the buckets
+      return null;
+    }
+    Object id = matcher.getField("_id");
+    return isSingleId(id) ? id : null;
+  }
+
+  private boolean isSingleId(Object id) {
+    if (id instanceof JsonObject) {
+      // An ObjectId, not a query operator such as $in
+      JsonObject idObject = (JsonObject) id;
+      return idObject.size() == 1 && idObject.getField("$oid") != null;
+    }
+    return id instanceof String || id instanceof Number;
+  }
+
+  /**
+   * Evicts what a write may have changed from the near cache. Changes made by other nodes are evicted when they
+   * show up in the oplog, this makes sure a node sees its own writes straight away.
+   */
+  private void invalidateCached(String collection, JsonObject matcher) {
+    if (distinctCache != null) {
+      distinctCache.invalidate(collection);
+    }
+    if (nearCache == null || !nearCache.handles(collection)) {
+      return;
+    }
+    Object id = matcher == null ? null : matcher.getField("_id");
+    if (isSingleId(id)) {
+      nearCache.invalidate(collection, id);
+    } else {
+      nearCache.invalidateAll(collection);
+    }
+  }
+
+  private void getCacheStats(Message<JsonObject> message) {
+    JsonObject reply = new JsonObject();
+    if (nearCache != null) {
+      reply.putObject("near_cache", nearCache.getStats());
+    }
+    if (distinctCache != null) {
+      reply.putObject("distinct_cache", distinctCache.getStats());
     }
     sendOK(message, reply);
   }
 
   private void doFindAndModify(Message<JsonObject> message) {
     String collectionName = getMandatoryString("collection", message);
-    if (collectionName == null) {
+    if (collectionName == null || rejectRouted(message, collectionName)
+        || !flushWriteBehind(message, collectionName)) {
       return;
     }
     JsonObject msgBody = message.body();
@@ -429,31 +2111,173 @@ public class MongoPersistor extends BusModBase implements Handler<Message<JsonOb
     DBCollection collection = db.getCollection(collectionName);
     DBObject result = collection.findAndModify(query, fields, sort, remove,
       update, returnNew, upsert);
+    invalidateCached(collectionName, msgBody.getObject("matcher"));
 
     JsonObject reply = new JsonObject();
     if (result != null) {
       JsonObject resultJson = dbObjectToJsonObject(result);
       reply.putObject("result", resultJson);
     }
+    putOpTime(reply, null);
     sendOK(message, reply);
   }
 
   private void doCount(Message<JsonObject> message) {
+    long start = System.nanoTime();
     String collection = getMandatoryString("collection", message);
     if (collection == null) {
       return;
     }
+    long maxTime = getMaxTime(message);
+    if (maxTime < 0) {
+      sendError(message, "deadline exceeded");
+      return;
+    }
     JsonObject matcher = message.body().getObject("matcher");
-    DBCollection coll = db.getCollection(collection);
-    long count;
-    if (matcher == null) {
-      count = coll.count();
-    } else {
-      count = coll.count(jsonToDBObject(matcher));
+    ReadPreference preference = getReadPreference(message);
+    long count = 0;
+    List<String> collections = getReadCollections(collection, matcher);
+    for (String name : collections) {
+      DBCollection coll = db.getCollection(name);
+      if (maxTime > 0) {
+        // count can't be given a max time, so run the count command ourselves
+        DBObject command = new BasicDBObject("count", name).append("maxTimeMS", maxTime);
+        if (matcher != null) {
+          command.put("query", jsonToDBObject(matcher));
+        }
+        CommandResult result = db.command(command, preference != null ? preference : coll.getReadPreference());
+        result.throwOnError();
+        count += ((Number) result.get("n")).longValue();
+      } else if (preference != null) {
+        count += coll.count(matcher == null ? new BasicDBObject() : jsonToDBObject(matcher), preference);
+      } else if (matcher == null) {
+        count += coll.count();
+      } else {
+        count += coll.count(jsonToDBObject(matcher));
+      }
     }
+    recordQuery(collection, matcher, null, start);
     JsonObject reply = new JsonObject();
     reply.putNumber("count", count);
     sendOK(message, reply);
+    if (slowOpLog != null) {
+      Callable<DBObject> explain = null;
+      if (collections.size() == 1) {
+        // A count is planned like a find of the same query
+        explain = explainFind(collections.get(0), matcher, null, null, null, -1, -1);
+      }
+      recordSlowOp("count", collection, matcher, null, start, count, explain);
+    }
+  }
+
+  private void doDistinct(Message<JsonObject> message) {
+    long start = System.nanoTime();
+    String collection = getMandatoryString("collection", message);
+    if (collection == null) {
+      return;
+    }
+    String key = getMandatoryString("key", message);
+    if (key == null) {
+      return;
+    }
+    long maxTime = getMaxTime(message);
+    if (maxTime < 0) {
+      sendError(message, "deadline exceeded");
+      return;
+    }
+    Integer batchSize = (Integer) message.body().getNumber("batch_size");
+    if (batchSize == null) {
+      batchSize = 100;
+    }
+    Integer timeout = (Integer) message.body().getNumber("timeout");
+    if (timeout == null || timeout < 0) {
+      timeout = 10000; // 10 seconds
+    }
+    JsonObject matcher = message.body().getObject("matcher");
+    String cacheKey = distinctCache == null ? null : DistinctCache.key(collection, key, matcher);
+    List<?> values = cacheKey == null ? null : distinctCache.get(cacheKey, System.currentTimeMillis());
+    Cursor cursor;
+    if (values != null) {
+      cursor = new ListCursor(values);
+    } else {
+      List<String> collections = getReadCollections(collection, matcher);
+      DBObject query = matcher == null ? new BasicDBObject() : jsonToDBObject(matcher);
+      ReadPreference preference = getReadPreference(message);
+      if (preference == null) {
+        preference = db.getCollection(collection).getReadPreference();
+      }
+      try {
+        if (collections.size() == 1) {
+          values = distinct(collections.get(0), key, query, maxTime, preference);
+        } else {
+          // A value can be in several buckets, but must only be returned once
+          Set<Object> merged = new LinkedHashSet<>();
+          for (String bucket : collections) {
+            merged.addAll(distinct(bucket, key, query, maxTime, preference));
+          }
+          values = new ArrayList<>(merged);
+        }
+        if (cacheKey != null) {
+          distinctCache.put(cacheKey, values, System.currentTimeMillis());
+        }
+        cursor = new ListCursor(values);
+      } catch (MongoException e) {
+        if (!isDistinctTooBig(e)) {
+          throw e;
+        }
+        if (collections.size() != 1) {
+          // The values of the buckets could only be merged by holding them all in memory
+          sendError(message, "distinct too big on routed collection " + collection);
+          return;
+        }
+        cursor = distinctByAggregation(db.getCollection(collections.get(0)), key, query, batchSize, maxTime,
+            preference);
+      }
+    }
+    sendBatch(message, cursor, batchSize, timeout, false, "_id");
+    recordQuery(collection, matcher, null, start);
+  }
+
+  private List<?> distinct(String collection, String key, DBObject query, long maxTime, ReadPreference preference) {
+    if (maxTime > 0) {
+      // distinct can't be given a max time, so run the distinct command ourselves
+      DBObject command = new BasicDBObject("distinct", collection).append("key", key).append("query", query)
+          .append("maxTimeMS", maxTime);
+      CommandResult result = db.command(command, preference);
+      result.throwOnError();
+      return (List<?>) result.get("values");
+    }
+    return db.getCollection(collection).distinct(key, query, preference);
+  }
+
+  /**
+   * The values of distinct are returned in a single document, which can't be larger than 16MB
+   */
+  private static boolean isDistinctTooBig(MongoException e) {
+    return e.getCode() == 17217 || e.getMessage() != null && e.getMessage().contains("distinct too big");
+  }
+
+  /**
+   * Groups by the field instead, which returns the values through a cursor however many there are. Arrays are
+   * unwound first, so their elements are returned as distinct does.
+   */
+  private Cursor distinctByAggregation(DBCollection coll, String key, DBObject query, int batchSize, long maxTime,
+                                       ReadPreference preference) {
+    BasicDBList and = new BasicDBList();
+    and.add(query);
+    and.add(new BasicDBObject(key, new BasicDBObject("$exists", true)));
+    List<DBObject> pipeline = new ArrayList<>();
+    pipeline.add(new BasicDBObject("$match", new BasicDBObject("$and", and)));
+    pipeline.add(new BasicDBObject("$unwind", "$" + key));
+    pipeline.add(new BasicDBObject("$group", new BasicDBObject("_id", "$" + key)));
+    AggregationOptions.Builder options = AggregationOptions.builder()
+        .outputMode(AggregationOptions.OutputMode.CURSOR)
+        .allowDiskUse(true)
+        .batchSize(batchSize);
+    if (maxTime > 0) {
+      options.maxTime(maxTime, TimeUnit.MILLISECONDS);
+    }
+    return coll.aggregate(pipeline, options.build(), preference);
   }
 
   private void doDelete(Message<JsonObject> message) {
@@ -465,23 +2289,139 @@ public class MongoPersistor extends BusModBase implements Handler<Message<JsonOb
     if (matcher == null) {
       return;
     }
-    DBCollection coll = db.getCollection(collection);
     DBObject obj = jsonToDBObject(matcher);
-    WriteConcern writeConcern = WriteConcern.valueOf(getOptionalStringConfig("writeConcern", ""));
-    // Backwards compatibility
-    if (writeConcern == null) {
-      writeConcern = WriteConcern.valueOf(getOptionalStringConfig("write_concern", ""));
+    if (!flushWriteBehind(message, collection)) {
+      return;
     }
-
-    if (writeConcern == null) {
-      writeConcern = db.getWriteConcern();
+    if (message.body().getBoolean("background", false)) {
+      if (router != null && router.isRouted(collection)) {
+        sendError(message, "background deletes are not supported on routed collection " + collection);
+        return;
+      }
+      startDeleteJob(message, collection, db.getCollection(collection), obj, matcher);
+      return;
     }
-    WriteResult res = coll.remove(obj, writeConcern);
-    int deleted = res.getN();
+    WriteConcern writeConcern = getWriteConcern();
+    WriteResult res = null;
+    int deleted = 0;
+    for (String name : getReadCollections(collection, matcher)) {
+      res = db.getCollection(name).remove(obj, writeConcern);
+      deleted += res.getN();
+    }
+    invalidateCached(collection, matcher);
     JsonObject reply = new JsonObject().putNumber("number", deleted);
+    putOpTime(reply, res);
     sendOK(message, reply);
   }
 
+  private void startDeleteJob(Message<JsonObject> message, final String collection, final DBCollection coll,
+                              DBObject obj, final JsonObject matcher) {
+    final WriteConcern writeConcern = getJobWriteConcern(message);
+    startJob(message, "delete", coll, obj, new BulkJob.Chunk() {
+      @Override
+      public int write(DBObject selector) {
+        WriteResult res = coll.remove(selector, writeConcern);
+        invalidateCached(collection, matcher);
+        return res.getN();
+      }
+    });
+  }
+
+  private void startUpdateJob(Message<JsonObject> message, final String collection, final DBCollection coll,
+                              DBObject criteria, final JsonObject criteriaJson, final DBObject objNew) {
+    final WriteConcern writeConcern = getJobWriteConcern(message);
+    startJob(message, "update", coll, criteria, new BulkJob.Chunk() {
+      @Override
+      public int write(DBObject selector) {
+        WriteResult res = coll.update(selector, objNew, false, true, writeConcern);
+        invalidateCached(collection, criteriaJson);
+        return res.getN();
+      }
+    });
+  }
+
+  /**
+   * Each chunk of a job can wait for its writes to replicate, for example with <code>"MAJORITY"</code>, so that
+   * the job can't run ahead of the secondaries
+   */
+  private WriteConcern getJobWriteConcern(Message<JsonObject> message) {
+    String name = message.body().getString("write_concern");
+    if (name == null) {
+      return getWriteConcern();
+    }
+    WriteConcern writeConcern = WriteConcern.valueOf(name);
+    if (writeConcern == null) {
+      throw new IllegalArgumentException("Invalid write_concern: " + name);
+    }
+    return writeConcern;
+  }
+
+  private static boolean hasOnlyOperators(JsonObject objNew) {
+    if (objNew.size() == 0) {
+      return false;
+    }
+    for (String field : objNew.getFieldNames()) {
+      if (!field.startsWith("$")) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void startJob(Message<JsonObject> message, String action, DBCollection coll, DBObject matcher,
+                        BulkJob.Chunk chunk) {
+    pruneJobs();
+    BulkJob job = new BulkJob(UUID.randomUUID().toString(), action, coll, matcher, message.body(), chunk);
+    jobs.put(job.getId(), job);
+    getJobExecutor().execute(job);
+    sendOK(message, new JsonObject().putString("job_id", job.getId()));
+  }
+
+  /**
+   * Forgets the jobs which finished longer ago than the retention
+   */
+  private void pruneJobs() {
+    long expired = System.currentTimeMillis() - getOptionalLongConfig("job_retention", 3600000);
+    for (BulkJob job : jobs.values()) {
+      if (job.isFinished() && job.getFinished() < expired) {
+        jobs.remove(job.getId());
+      }
+    }
+  }
+
+  private void getJobStatus(Message<JsonObject> message) {
+    pruneJobs();
+    String id = message.body().getString("job_id");
+    if (id == null) {
+      JsonArray statuses = new JsonArray();
+      for (BulkJob job : jobs.values()) {
+        statuses.addObject(job.getStatus());
+      }
+      sendOK(message, new JsonObject().putArray("jobs", statuses));
+      return;
+    }
+    BulkJob job = jobs.get(id);
+    if (job == null) {
+      sendError(message, "Unknown job: " + id);
+      return;
+    }
+    sendOK(message, new JsonObject().putObject("job", job.getStatus()));
+  }
+
+  private void cancelJob(Message<JsonObject> message) {
+    String id = getMandatoryString("job_id", message);
+    if (id == null) {
+      return;
+    }
+    BulkJob job = jobs.get(id);
+    if (job == null) {
+      sendError(message, "Unknown job: " + id);
+      return;
+    }
+    job.cancel();
+    sendOK(message, new JsonObject().putObject("job", job.getStatus()));
+  }
+
   private void getCollections(Message<JsonObject> message) {
     JsonObject reply = new JsonObject();
     reply.putArray("collections", new JsonArray(db.getCollectionNames().toArray()));
@@ -497,16 +2437,68 @@ public class MongoPersistor extends BusModBase implements Handler<Message<JsonOb
       return;
     }
 
+    if (!flushWriteBehind(message, collection)) {
+      return;
+    }
     DBCollection coll = db.getCollection(collection);
 
     try {
       coll.drop();
+      collectionNames.remove(collection);
+      invalidateCached(collection, null);
+      String routed = router == null ? null : router.getRoutedCollection(collection);
+      if (routed != null) {
+        invalidateCached(routed, null);
+      }
       sendOK(message, reply);
     } catch (MongoException mongoException) {
       sendError(message, "exception thrown when attempting to drop collection: " + collection + " \n" + mongoException.getMessage());
     }
   }
 
+  private void ensureIndex(Message<JsonObject> message) {
+    String collection = getMandatoryString("collection", message);
+    if (collection == null) {
+      return;
+    }
+    if (getMandatoryObject("keys", message) == null) {
+      return;
+    }
+    createIndex(collection, indexSpec(message.body()));
+    sendOK(message);
+  }
+
+  private void listIndexes(Message<JsonObject> message) {
+    String collection = getMandatoryString("collection", message);
+    if (collection == null) {
+      return;
+    }
+    JsonArray indexes = new JsonArray();
+    for (DBObject index : db.getCollection(collection).getIndexInfo()) {
+      // The order of the keys is what tells a compound index from another on the same fields
+      indexes.add(dbObjectToJsonObject(index).putObject("key", MongoUtil.convertIndexKeys(index)));
+    }
+    sendOK(message, new JsonObject().putArray("indexes", indexes));
+  }
+
+  private void dropIndex(Message<JsonObject> message) {
+    String collection = getMandatoryString("collection", message);
+    if (collection == null) {
+      return;
+    }
+    String name = message.body().getString("name");
+    JsonObject keys = message.body().getObject("keys");
+    if (name != null) {
+      db.getCollection(collection).dropIndex(name);
+    } else if (keys != null) {
+      db.getCollection(collection).dropIndex(jsonToDBObject(keys));
+    } else {
+      sendError(message, "name or keys must be specified");
+      return;
+    }
+    sendOK(message);
+  }
+
   private void getCollectionStats(Message<JsonObject> message) {
     String collection = getMandatoryString("collection", message);
 
@@ -524,32 +2516,91 @@ public class MongoPersistor extends BusModBase implements Handler<Message<JsonOb
   }
 
   private void doAggregation(Message<JsonObject> message) {
+    long start = System.nanoTime();
     if (isCollectionMissing(message)) {
       sendError(message, "collection is missing");
       return;
     }
+    long maxTime = getMaxTime(message);
+    if (maxTime < 0) {
+      sendError(message, "deadline exceeded");
+      return;
+    }
     if (isPipelinesMissing(message.body().getArray("pipelines"))) {
       sendError(message, "no pipeline operations found");
       return;
     }
     String collection = getMandatoryString("collection", message);
+    if (rejectRouted(message, collection)) {
+      return;
+    }
     JsonArray pipelinesAsJson = message.body().getArray("pipelines");
     List<DBObject> pipelines = jsonPipelinesToDbObjects(pipelinesAsJson);
 
-    DBCollection dbCollection = db.getCollection(collection);
-    // v2.11.1 of the driver has an inefficient method signature in terms
-    // of parameters, so we have to remove the first one
-    DBObject firstPipelineOp = pipelines.remove(0);
-    AggregationOutput aggregationOutput = dbCollection.aggregate(firstPipelineOp, pipelines.toArray(new DBObject[] {}));
+    final List<DBObject> pipeline = new ArrayList<>(pipelines);
+    final DBCollection dbCollection = db.getCollection(collection);
+    ReadPreference preference = getReadPreference(message);
+    Iterable<DBObject> output;
+    Cursor cursor = null;
+    if (maxTime > 0) {
+      cursor = dbCollection.aggregate(pipeline, AggregationOptions.builder()
+          .maxTime(maxTime, TimeUnit.MILLISECONDS)
+          .outputMode(AggregationOptions.OutputMode.INLINE)
+          .build(), preference != null ? preference : dbCollection.getReadPreference());
+      output = toIterable(cursor);
+    } else if (preference != null) {
+      output = dbCollection.aggregate(pipeline, preference).results();
+    } else {
+      // v2.11.1 of the driver has an inefficient method signature in terms
+      // of parameters, so we have to remove the first one
+      DBObject firstPipelineOp = pipelines.remove(0);
+      AggregationOutput aggregationOutput = dbCollection.aggregate(firstPipelineOp, pipelines.toArray(new DBObject[] {}));
+      output = aggregationOutput.results();
+    }
 
-    JsonArray results = new JsonArray();
-    for (DBObject dbObject : aggregationOutput.results()) {
-      results.add(dbObjectToJsonObject(dbObject));
+    int returned;
+    try {
+      if (isBufferReply(message)) {
+        BatchEncoder encoder = new BatchEncoder(useMongoTypes);
+        for (DBObject dbObject : output) {
+          encoder.add(dbObject);
+        }
+        returned = encoder.size();
+        message.reply(encoder.finish("ok"));
+      } else {
+        JsonArray results = new JsonArray();
+        for (DBObject dbObject : output) {
+          results.add(dbObjectToJsonObject(dbObject));
+        }
+        returned = results.size();
+        JsonObject reply = new JsonObject();
+        reply.putArray("results", results);
+        sendOK(message, reply);
+      }
+    } finally {
+      if (cursor != null) {
+        cursor.close();
+      }
+    }
+    if (slowOpLog != null) {
+      // The shape of an aggregation is that of the $match it starts with, if any
+      JsonObject match = ((JsonObject) pipelinesAsJson.get(0)).getObject("$match");
+      recordSlowOp("aggregate", collection, match, null, start, returned, new Callable<DBObject>() {
+        @Override
+        public DBObject call() {
+          return dbCollection.explainAggregate(pipeline, AggregationOptions.builder().build());
+        }
+      });
     }
+  }
 
-    JsonObject reply = new JsonObject();
-    reply.putArray("results", results);
-    sendOK(message, reply);
+  private static Iterable<DBObject> toIterable(final Cursor cursor) {
+    return new Iterable<DBObject>() {
+      @Override
+      public Iterator<DBObject> iterator() {
+        return cursor;
+      }
+    };
   }
 
   private List<DBObject> jsonPipelinesToDbObjects(JsonArray pipelinesAsJson) {
@@ -23,6 +23,7 @@ import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.core.json.impl.Json;
 
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Utilities for converting Bson objects to and from vert.x JsonObject objects
@@ -78,4 +79,16 @@ public class MongoUtil {
         HashMap<String, Object> jsonMap = Json.decodeValue(serialize, HashMap.class);
         return new JsonObject(jsonMap);
     }
+
+    /**
+     * Converts the keys of an index, as described by getIndexInfo, keeping the fields in order. Unlike
+     * {@link #convertBsonToJson(DBObject)} this doesn't lose the order, which is what a compound index is made of.
+     * @param index the description of the index
+     * @return the keys of the index
+     */
+    public static JsonObject convertIndexKeys(DBObject index) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> keys = ((DBObject) index.get("key")).toMap();
+        return new JsonObject(keys);
+    }
 }
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.vertx.mods;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+import com.mongodb.MongoException;
+import org.bson.types.BSONTimestamp;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, least recently used cache of documents by <code>_id</code>.<p>
+ * To stay correct when other nodes write to the cached collections, it tails the replica set oplog and evicts
+ * any document which changes. While the oplog can't be read the cache is bypassed. Once tailing resumes the cache
+ * is emptied, since the changes made in the meantime are only evicted as the tailer catches up with them.
+ */
+public class NearCache {
+
+  private final Mongo mongo;
+  private final String dbName;
+  private final Set<String> collections = new HashSet<>();
+  private final Logger logger;
+  private final Map<String, JsonObject> entries;
+  private final Map<String, AtomicLong> generations = new HashMap<>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+  private volatile boolean enabled;
+  private volatile boolean running;
+  private volatile BSONTimestamp lastTimestamp;
+  private Thread tailer;
+
+  public NearCache(Mongo mongo, String dbName, JsonObject config, Logger logger) {
+    this.mongo = mongo;
+    this.dbName = dbName;
+    this.logger = logger;
+    for (Object collection : config.getArray("collections", new JsonArray())) {
+      collections.add((String) collection);
+      generations.put((String) collection, new AtomicLong());
+    }
+    final int maxEntries = config.getInteger("max_entries", 10000);
+    this.entries = new LinkedHashMap<String, JsonObject>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, JsonObject> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Starts tailing the oplog. The cache stays disabled if there is no oplog, which is the case unless MongoDB is
+   * running as a replica set.
+   */
+  public void start() {
+    if (!mongo.getDB("local").collectionExists("oplog.rs")) {
+      logger.warn("No oplog found, the near cache needs a replica set and is disabled");
+      return;
+    }
+    running = true;
+    tailer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        tail();
+      }
+    }, "mongo-persistor-oplog-tailer");
+    tailer.setDaemon(true);
+    tailer.start();
+  }
+
+  public void stop() {
+    running = false;
+    enabled = false;
+    if (tailer != null) {
+      tailer.interrupt();
+    }
+  }
+
+  /**
+   * The cache is enabled by the tailer while it is reading the oplog, and disabled while it can't. Enabling a
+   * disabled cache evicts everything in it.
+   */
+  public void setEnabled(boolean enabled) {
+    if (enabled && !this.enabled) {
+      for (String collection : collections) {
+        invalidateAll(collection);
+      }
+    }
+    this.enabled = enabled;
+  }
+
+  public boolean handles(String collection) {
+    return collections.contains(collection);
+  }
+
+  public static String key(String collection, Object id) {
+    return collection + '\u0000' + new JsonObject().putValue("_id", id).encode();
+  }
+
+  /**
+   * @return a copy of the cached document, or null if it isn't cached or the cache is disabled
+   */
+  public JsonObject get(String collection, Object id) {
+    if (!enabled) {
+      return null;
+    }
+    JsonObject doc;
+    synchronized (entries) {
+      doc = entries.get(key(collection, id));
+    }
+    if (doc == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return doc.copy();
+  }
+
+  /**
+   * Like {@link #get(String, Object)} but also returns documents while the cache is disabled, for use when they
+   * can't be read from MongoDB at all
+   */
+  public JsonObject getStale(String collection, Object id) {
+    JsonObject doc;
+    synchronized (entries) {
+      doc = entries.get(key(collection, id));
+    }
+    return doc == null ? null : doc.copy();
+  }
+
+  /**
+   * The generation of a collection changes each time one of its documents is evicted. Read it before reading a
+   * document from MongoDB and pass it to {@link #put(String, Object, JsonObject, long)}, so a document which was
+   * changed while it was being read isn't cached.
+   */
+  public long getGeneration(String collection) {
+    return generations.get(collection).get();
+  }
+
+  public void put(String collection, Object id, JsonObject doc, long generation) {
+    if (!enabled) {
+      return;
+    }
+    synchronized (entries) {
+      if (generations.get(collection).get() == generation) {
+        entries.put(key(collection, id), doc.copy());
+      }
+    }
+  }
+
+  public void invalidate(String collection, Object id) {
+    synchronized (entries) {
+      generations.get(collection).incrementAndGet();
+      entries.remove(key(collection, id));
+    }
+    invalidations.incrementAndGet();
+  }
+
+  public void invalidateAll(String collection) {
+    String prefix = collection + '\u0000';
+    synchronized (entries) {
+      generations.get(collection).incrementAndGet();
+      Iterator<String> keys = entries.keySet().iterator();
+      while (keys.hasNext()) {
+        if (keys.next().startsWith(prefix)) {
+          keys.remove();
+        }
+      }
+    }
+    invalidations.incrementAndGet();
+  }
+
+  /**
+   * @return the cache statistics, including how far behind the oplog the cache is, in milliseconds
+   */
+  public JsonObject getStats() {
+    JsonObject stats = new JsonObject();
+    stats.putBoolean("enabled", enabled);
+    synchronized (entries) {
+      stats.putNumber("size", entries.size());
+    }
+    stats.putNumber("hits", hits.get());
+    stats.putNumber("misses", misses.get());
+    stats.putNumber("invalidations", invalidations.get());
+    if (enabled) {
+      stats.putNumber("staleness_ms", getStaleness());
+    }
+    return stats;
+  }
+
+  /**
+   * The age of the oldest change to the cached collections which the tailer hasn't applied yet, or 0 if it has
+   * applied them all
+   */
+  private long getStaleness() {
+    BSONTimestamp last = lastTimestamp;
+    if (last == null) {
+      return 0;
+    }
+    DBCursor cursor = oplog().find(query(last, "$gt")).addOption(Bytes.QUERYOPTION_OPLOGREPLAY).limit(1);
+    try {
+      if (!cursor.hasNext()) {
+        return 0;
+      }
+      BSONTimestamp oldest = (BSONTimestamp) cursor.next().get("ts");
+      return Math.max(0, System.currentTimeMillis() - oldest.getTime() * 1000L);
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private DBCollection oplog() {
+    return mongo.getDB("local").getCollection("oplog.rs");
+  }
+
+  private DBObject query(BSONTimestamp from, String operator) {
+    List<String> namespaces = new ArrayList<>();
+    for (String collection : collections) {
+      namespaces.add(dbName + "." + collection);
+    }
+    // Commands such as drop are logged against the $cmd namespace
+    namespaces.add(dbName + ".$cmd");
+    return new BasicDBObject("ts", new BasicDBObject(operator, from))
+        .append("ns", new BasicDBObject("$in", namespaces));
+  }
+
+  private void tail() {
+    while (running) {
+      DBCursor cursor = null;
+      try {
+        if (lastTimestamp == null) {
+          DBCursor newest = oplog().find().sort(new BasicDBObject("$natural", -1)).limit(1);
+          lastTimestamp = newest.hasNext() ? (BSONTimestamp) newest.next().get("ts") : new BSONTimestamp();
+          newest.close();
+        }
+        // $gte keeps the cursor alive by matching the last change we saw, which is then skipped
+        cursor = oplog().find(query(lastTimestamp, "$gte"))
+            .addOption(Bytes.QUERYOPTION_TAILABLE)
+            .addOption(Bytes.QUERYOPTION_AWAITDATA)
+            .addOption(Bytes.QUERYOPTION_OPLOGREPLAY);
+        setEnabled(true);
+        while (running && cursor.hasNext()) {
+          DBObject entry = cursor.next();
+          BSONTimestamp ts = (BSONTimestamp) entry.get("ts");
+          if (ts.compareTo(lastTimestamp) > 0) {
+            apply(entry);
+            lastTimestamp = ts;
+          }
+        }
+      } catch (MongoException e) {
+        if (running) {
+          logger.warn("Lost the oplog, the near cache is bypassed until it is back: " + e.getMessage());
+          setEnabled(false);
+        }
+      } finally {
+        if (cursor != null) {
+          cursor.close();
+        }
+      }
+      try {
+        Thread.sleep(1000);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Evicts what an entry of the oplog changed
+   */
+  public void apply(DBObject entry) {
+    String ns = (String) entry.get("ns");
+    String collection = ns.substring(dbName.length() + 1);
+    String op = (String) entry.get("op");
+    if ("c".equals(op)) {
+      // A command such as drop or renameCollection, we can't tell which documents it affects
+      for (String cached : collections) {
+        invalidateAll(cached);
+      }
+      return;
+    }
+    if (!collections.contains(collection)) {
+      return;
+    }
+    DBObject changed = (DBObject) ("u".equals(op) ? entry.get("o2") : entry.get("o"));
+    Object id = changed == null ? null : changed.get("_id");
+    if (id == null) {
+      invalidateAll(collection);
+    } else {
+      invalidate(collection, MongoUtil.convertBsonToJson(new BasicDBObject("_id", id)).getField("_id"));
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.vertx.mods;
+
+import org.vertx.java.core.json.JsonObject;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reads the connection pool of each server from the MBeans the driver registers, one per server a client connects
+ * to, and keeps the peaks seen since the module started.<p>
+ * The driver tells the pools of different clients apart by the description of the client, so the client must be
+ * created with the description given here.
+ */
+public class PoolMonitor {
+
+  private static final String[] ATTRIBUTES = {"Host", "Port", "MinSize", "MaxSize", "Size", "CheckedOutCount",
+      "WaitQueueSize"};
+
+  private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+  private final ObjectName pools;
+  private final ConcurrentMap<String, Peaks> peaks = new ConcurrentHashMap<>();
+
+  /**
+   * @param description the description of the client, which may only hold letters, digits, '-' and '.'
+   */
+  public PoolMonitor(String description) {
+    try {
+      this.pools = new ObjectName("org.mongodb.driver:type=ConnectionPool,description=" + description + ",*");
+    } catch (JMException e) {
+      throw new IllegalArgumentException("Invalid client description: " + description, e);
+    }
+  }
+
+  /**
+   * Reads the pools and adds them to the peaks
+   *
+   * @return the pool of each server, keyed by <code>host:port</code>
+   */
+  public JsonObject sample() {
+    JsonObject result = new JsonObject();
+    for (ObjectName name : server.queryNames(pools, null)) {
+      JsonObject pool;
+      try {
+        pool = read(server.getAttributes(name, ATTRIBUTES));
+      } catch (JMException e) {
+        // The pool was closed since it was listed
+        continue;
+      }
+      String key = pool.getString("host") + ":" + pool.getNumber("port");
+      pool.removeField("host");
+      pool.removeField("port");
+      Peaks serverPeaks = peaks.get(key);
+      if (serverPeaks == null) {
+        serverPeaks = new Peaks();
+        Peaks existing = peaks.putIfAbsent(key, serverPeaks);
+        if (existing != null) {
+          serverPeaks = existing;
+        }
+      }
+      serverPeaks.add(pool);
+      result.putObject(key, pool.mergeIn(serverPeaks.toJson()));
+    }
+    return result;
+  }
+
+  private static JsonObject read(AttributeList attributes) {
+    JsonObject pool = new JsonObject();
+    for (Attribute attribute : attributes.asList()) {
+      Object value = attribute.getValue();
+      switch (attribute.getName()) {
+        case "Host":
+          pool.putString("host", (String) value);
+          break;
+        case "Port":
+          pool.putNumber("port", (Number) value);
+          break;
+        case "MinSize":
+          pool.putNumber("min_size", (Number) value);
+          break;
+        case "MaxSize":
+          pool.putNumber("max_size", (Number) value);
+          break;
+        case "Size":
+          pool.putNumber("size", (Number) value);
+          break;
+        case "CheckedOutCount":
+          pool.putNumber("checked_out", (Number) value);
+          break;
+        case "WaitQueueSize":
+          pool.putNumber("wait_queue", (Number) value);
+          break;
+      }
+    }
+    pool.putNumber("available", pool.getInteger("size", 0) - pool.getInteger("checked_out", 0));
+    return pool;
+  }
+
+  private static class Peaks {
+    private long samples;
+    private long waitingSamples;
+    private int checkedOut;
+    private int waitQueue;
+
+    synchronized void add(JsonObject pool) {
+      samples++;
+      int waiting = pool.getInteger("wait_queue", 0);
+      if (waiting > 0) {
+        waitingSamples++;
+      }
+      checkedOut = Math.max(checkedOut, pool.getInteger("checked_out", 0));
+      waitQueue = Math.max(waitQueue, waiting);
+    }
+
+    synchronized JsonObject toJson() {
+      return new JsonObject()
+          .putNumber("peak_checked_out", checkedOut)
+          .putNumber("peak_wait_queue", waitQueue)
+          .putNumber("samples", samples)
+          .putNumber("waiting_samples", waitingSamples);
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.vertx.mods;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reduces a query to its shape: the fields and operators it uses, with every value replaced by <code>"?"</code>
+ * and the fields in name order. Queries which only differ in their values have the same shape, so they can be
+ * grouped together, for example <code>{"age": {"$gt": 30}, "name": "tim"}</code> and
+ * <code>{"name": "bob", "age": {"$gt": 50}}</code> both have the shape
+ * <code>{"age": {"$gt": "?"}, "name": "?"}</code>.
+ */
+public class QueryShape {
+
+  private static final String VALUE = "?";
+
+  // Operators whose value is itself a query, or a list of queries
+  private static final Set<String> LOGICAL = new HashSet<>(Arrays.asList("$and", "$or", "$nor"));
+  private static final Set<String> NESTED = new HashSet<>(Arrays.asList("$elemMatch", "$not"));
+
+  // The keys of values in extended JSON, such as {"$oid": "..."}
+  private static final Set<String> TYPES = new HashSet<>(Arrays.asList("$oid", "$date", "$binary", "$type",
+      "$timestamp", "$numberLong", "$minKey", "$maxKey", "$undefined", "$ref", "$id"));
+
+  private QueryShape() {
+  }
+
+  /**
+   * @return the shape of a query, which is empty if the query is null
+   */
+  public static JsonObject normalise(JsonObject query) {
+    JsonObject shape = new JsonObject();
+    if (query == null) {
+      return shape;
+    }
+    for (String field : sortedNames(query)) {
+      Object value = query.getField(field);
+      if (LOGICAL.contains(field) && value instanceof JsonArray) {
+        JsonArray clauses = new JsonArray();
+        for (Object clause : (JsonArray) value) {
+          clauses.add(clause instanceof JsonObject ? normalise((JsonObject) clause) : VALUE);
+        }
+        shape.putArray(field, clauses);
+      } else if (isOperators(value)) {
+        shape.putObject(field, normaliseOperators((JsonObject) value));
+      } else {
+        shape.putString(field, VALUE);
+      }
+    }
+    return shape;
+  }
+
+  /**
+   * @param sort a sort as given to a find, either an object or an array of objects with one field each
+   * @return the sort as a single object of fields and directions, which is empty if the sort is null
+   */
+  public static JsonObject normaliseSort(Object sort) {
+    JsonObject shape = new JsonObject();
+    if (sort instanceof JsonObject) {
+      shape = ((JsonObject) sort).copy();
+    } else if (sort instanceof JsonArray) {
+      for (Object field : (JsonArray) sort) {
+        if (field instanceof JsonObject) {
+          shape.mergeIn((JsonObject) field);
+        }
+      }
+    }
+    return shape;
+  }
+
+  private static JsonObject normaliseOperators(JsonObject operators) {
+    JsonObject shape = new JsonObject();
+    for (String operator : sortedNames(operators)) {
+      Object value = operators.getField(operator);
+      if (NESTED.contains(operator) && value instanceof JsonObject) {
+        shape.putObject(operator, isOperators(value) ?
+            normaliseOperators((JsonObject) value) : normalise((JsonObject) value));
+      } else {
+        shape.putString(operator, VALUE);
+      }
+    }
+    return shape;
+  }
+
+  /**
+   * An object is a set of operators, rather than a value to match, if all its fields are operators
+   */
+  private static boolean isOperators(Object value) {
+    if (!(value instanceof JsonObject) || ((JsonObject) value).size() == 0) {
+      return false;
+    }
+    for (String name : ((JsonObject) value).getFieldNames()) {
+      if (!name.startsWith("$") || TYPES.contains(name)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static List<String> sortedNames(JsonObject object) {
+    List<String> names = new ArrayList<>(object.getFieldNames());
+    Collections.sort(names);
+    return names;
+  }
+}
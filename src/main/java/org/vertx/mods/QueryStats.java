@@ -0,0 +1,371 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.vertx.mods;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts how often each {@link QueryShape} is queried, and how long it takes, per collection and sort.<p>
+ * From these statistics it suggests the indexes which are missing. The suggested index of a shape follows the
+ * equality, sort, range rule: first the fields matched by equality, then the sort fields, then the fields matched by
+ * a range or any other operator. Suggestions are ranked by the total time spent on the shapes they would serve.
+ */
+public class QueryStats {
+
+  // Operators which select by equality as far as index order is concerned
+  private static final Set<String> EQUALITY = new HashSet<>(Arrays.asList("$eq", "$in"));
+
+  // Operators which need a special index, or none, so no ordinary index is suggested for their fields
+  private static final Set<String> UNINDEXED = new HashSet<>(Arrays.asList("$near", "$nearSphere", "$geoWithin",
+      "$geoIntersects", "$within", "$where"));
+
+  private final int maxShapes;
+  private final ConcurrentMap<String, Shape> shapes = new ConcurrentHashMap<>();
+
+  public QueryStats(JsonObject config) {
+    this.maxShapes = config.getInteger("max_shapes", 1000);
+  }
+
+  /**
+   * Adds a query to the statistics of its shape. Once max_shapes shapes are known, queries of new shapes are
+   * ignored.
+   */
+  public void record(String collection, JsonObject matcher, Object sort, long durationNanos) {
+    JsonObject shape = QueryShape.normalise(matcher);
+    JsonObject sortShape = QueryShape.normaliseSort(sort);
+    String key = collection + '\u0000' + shape.encode() + '\u0000' + sortShape.encode();
+    Shape stats = shapes.get(key);
+    if (stats == null) {
+      if (shapes.size() >= maxShapes) {
+        return;
+      }
+      stats = new Shape(collection, shape, sortShape);
+      Shape existing = shapes.putIfAbsent(key, stats);
+      if (existing != null) {
+        stats = existing;
+      }
+    }
+    stats.add(durationNanos);
+  }
+
+  /**
+   * @return the collections which have been queried
+   */
+  public Set<String> getCollections() {
+    Set<String> collections = new TreeSet<>();
+    for (Shape shape : shapes.values()) {
+      collections.add(shape.collection);
+    }
+    return collections;
+  }
+
+  /**
+   * @param collection only return the shapes of this collection, or of all collections if null
+   * @return the statistics of the shapes, those with the most total time first
+   */
+  public JsonArray getStats(String collection, int limit) {
+    List<Shape> sorted = new ArrayList<>();
+    for (Shape shape : shapes.values()) {
+      if (collection == null || collection.equals(shape.collection)) {
+        sorted.add(shape);
+      }
+    }
+    Collections.sort(sorted, new Comparator<Shape>() {
+      @Override
+      public int compare(Shape a, Shape b) {
+        return Long.compare(b.getTotalNanos(), a.getTotalNanos());
+      }
+    });
+    JsonArray result = new JsonArray();
+    for (int i = 0; i < sorted.size() && i < limit; i++) {
+      result.addObject(sorted.get(i).toJson());
+    }
+    return result;
+  }
+
+  /**
+   * @param indexes the keys of the existing indexes of each collection, in the form of <code>getIndexInfo()</code>
+   * @return the suggested indexes, those which would serve the most total query time first
+   */
+  public JsonArray getAdvice(Map<String, List<JsonObject>> indexes, int limit) {
+    Map<String, Advice> advice = new LinkedHashMap<>();
+    for (Shape shape : shapes.values()) {
+      Candidate candidate = Candidate.of(shape.shape, shape.sort);
+      List<JsonObject> existing = indexes.get(shape.collection);
+      if (candidate.isEmpty() || existing == null || candidate.isServedByAny(existing)) {
+        continue;
+      }
+      JsonObject keys = candidate.getKeys();
+      String key = shape.collection + '\u0000' + keys.encode();
+      Advice entry = advice.get(key);
+      if (entry == null) {
+        entry = new Advice(shape.collection, keys);
+        advice.put(key, entry);
+      }
+      entry.add(shape);
+    }
+
+    // An index also serves the queries of any index which is a prefix of it, so fold those into the longest one
+    List<Advice> merged = new ArrayList<>();
+    for (Advice entry : advice.values()) {
+      Advice longer = null;
+      for (Advice other : advice.values()) {
+        if (other != entry && entry.isPrefixOf(other) && (longer == null || longer.isPrefixOf(other))) {
+          longer = other;
+        }
+      }
+      if (longer == null) {
+        merged.add(entry);
+      } else {
+        longer.shapes.addAll(entry.shapes);
+      }
+    }
+
+    Collections.sort(merged, new Comparator<Advice>() {
+      @Override
+      public int compare(Advice a, Advice b) {
+        return Long.compare(b.getTotalNanos(), a.getTotalNanos());
+      }
+    });
+    JsonArray result = new JsonArray();
+    for (int i = 0; i < merged.size() && i < limit; i++) {
+      result.addObject(merged.get(i).toJson());
+    }
+    return result;
+  }
+
+  private static double toMillis(long nanos) {
+    return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  private static class Shape {
+    private final String collection;
+    private final JsonObject shape;
+    private final JsonObject sort;
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    Shape(String collection, JsonObject shape, JsonObject sort) {
+      this.collection = collection;
+      this.shape = shape;
+      this.sort = sort;
+    }
+
+    synchronized void add(long nanos) {
+      count++;
+      totalNanos += nanos;
+      maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    synchronized long getCount() {
+      return count;
+    }
+
+    synchronized long getTotalNanos() {
+      return totalNanos;
+    }
+
+    synchronized JsonObject toJson() {
+      JsonObject json = new JsonObject()
+          .putString("collection", collection)
+          .putObject("shape", shape.copy());
+      if (sort.size() > 0) {
+        json.putObject("sort", sort.copy());
+      }
+      return json.putNumber("count", count)
+          .putNumber("total_ms", toMillis(totalNanos))
+          .putNumber("mean_ms", count == 0 ? 0 : toMillis(totalNanos / count))
+          .putNumber("max_ms", toMillis(maxNanos));
+    }
+  }
+
+  /**
+   * The index suggested for a shape
+   */
+  static class Candidate {
+    private final Set<String> equality = new TreeSet<>();
+    private final JsonObject sort = new JsonObject();
+    private final Set<String> range = new TreeSet<>();
+
+    static Candidate of(JsonObject shape, JsonObject sort) {
+      Candidate candidate = new Candidate();
+      candidate.addFields(shape);
+      for (String field : sort.getFieldNames()) {
+        Object direction = sort.getField(field);
+        if (direction instanceof Number && !candidate.equality.contains(field)) {
+          candidate.sort.putNumber(field, ((Number) direction).intValue() < 0 ? -1 : 1);
+          candidate.range.remove(field);
+        }
+      }
+      return candidate;
+    }
+
+    private void addFields(JsonObject shape) {
+      for (String field : shape.getFieldNames()) {
+        Object value = shape.getField(field);
+        if (field.equals("$and") && value instanceof JsonArray) {
+          for (Object clause : (JsonArray) value) {
+            if (clause instanceof JsonObject) {
+              addFields((JsonObject) clause);
+            }
+          }
+        } else if (field.startsWith("$")) {
+          // $or, $nor, $text and the like can't be served by a single ordinary index
+          continue;
+        } else if (value instanceof JsonObject) {
+          Set<String> operators = ((JsonObject) value).getFieldNames();
+          if (!Collections.disjoint(operators, UNINDEXED)) {
+            continue;
+          }
+          if (EQUALITY.containsAll(operators)) {
+            equality.add(field);
+          } else if (!equality.contains(field)) {
+            range.add(field);
+          }
+        } else {
+          equality.add(field);
+          range.remove(field);
+        }
+      }
+    }
+
+    boolean isEmpty() {
+      return equality.isEmpty() && sort.size() == 0 && range.isEmpty();
+    }
+
+    JsonObject getKeys() {
+      JsonObject keys = new JsonObject();
+      for (String field : equality) {
+        keys.putNumber(field, 1);
+      }
+      keys.mergeIn(sort);
+      for (String field : range) {
+        keys.putNumber(field, 1);
+      }
+      return keys;
+    }
+
+    boolean isServedByAny(List<JsonObject> indexes) {
+      for (JsonObject index : indexes) {
+        if (isServedBy(index)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * An index serves the candidate if it starts with the equality fields in any order, followed by the sort fields
+     * in order and in the same or the reverse directions, followed by the range fields in any order
+     */
+    boolean isServedBy(JsonObject index) {
+      List<String> fields = new ArrayList<>(index.getFieldNames());
+      if (fields.size() < equality.size() + sort.size() + range.size()) {
+        return false;
+      }
+      int pos = 0;
+      if (!new HashSet<>(fields.subList(pos, pos + equality.size())).equals(equality)) {
+        return false;
+      }
+      pos += equality.size();
+      int reversed = 0;
+      for (String field : sort.getFieldNames()) {
+        Object direction = index.getField(fields.get(pos));
+        if (!field.equals(fields.get(pos)) || !(direction instanceof Number)) {
+          return false;
+        }
+        int match = ((Number) direction).intValue() * sort.getInteger(field) < 0 ? -1 : 1;
+        if (reversed != 0 && match != reversed) {
+          return false;
+        }
+        reversed = match;
+        pos++;
+      }
+      return new HashSet<>(fields.subList(pos, pos + range.size())).equals(range);
+    }
+  }
+
+  private static class Advice {
+    private final String collection;
+    private final JsonObject keys;
+    private final List<Shape> shapes = new ArrayList<>();
+
+    Advice(String collection, JsonObject keys) {
+      this.collection = collection;
+      this.keys = keys;
+    }
+
+    void add(Shape shape) {
+      shapes.add(shape);
+    }
+
+    long getTotalNanos() {
+      long total = 0;
+      for (Shape shape : shapes) {
+        total += shape.getTotalNanos();
+      }
+      return total;
+    }
+
+    boolean isPrefixOf(Advice other) {
+      if (!collection.equals(other.collection) || keys.size() >= other.keys.size()) {
+        return false;
+      }
+      List<String> otherFields = new ArrayList<>(other.keys.getFieldNames());
+      int i = 0;
+      for (String field : keys.getFieldNames()) {
+        if (!field.equals(otherFields.get(i++)) || !keys.getField(field).equals(other.keys.getField(field))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    JsonObject toJson() {
+      long queries = 0;
+      JsonArray shapesJson = new JsonArray();
+      for (Shape shape : shapes) {
+        queries += shape.getCount();
+        shapesJson.addObject(shape.toJson());
+      }
+      long total = getTotalNanos();
+      return new JsonObject()
+          .putString("collection", collection)
+          .putObject("keys", keys.copy())
+          .putNumber("queries", queries)
+          .putNumber("total_ms", toMillis(total))
+          .putNumber("mean_ms", queries == 0 ? 0 : toMillis(total / queries))
+          .putArray("shapes", shapesJson);
+    }
+  }
+}
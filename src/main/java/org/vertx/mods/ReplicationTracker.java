@@ -0,0 +1,191 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.vertx.mods;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+import org.bson.types.BSONTimestamp;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps track of how far the secondaries of a replica set have replicated, so that a read which must see an earlier
+ * write is only sent to a secondary once every secondary has that write.<p>
+ * Writes are identified by their opTime, the timestamp of their entry in the oplog, which is handed to clients as
+ * an opaque token of the form <code>seconds:increment</code>. Hidden and delayed secondaries are left out, as reads
+ * aren't sent to them and a delayed one would otherwise hold every read back.
+ */
+public class ReplicationTracker {
+
+  // The members only change when the replica set is reconfigured, so they are read far less often than the opTimes
+  private static final long CONFIG_INTERVAL = 10000;
+
+  private final Mongo mongo;
+  private volatile BSONTimestamp secondariesOpTime;
+  // Only used by refresh(), under its lock
+  private Set<Object> ignoredMembers = Collections.emptySet();
+  private long configReadAt;
+
+  public ReplicationTracker(Mongo mongo) {
+    this.mongo = mongo;
+  }
+
+  /**
+   * Reads the opTime of each member from <code>replSetGetStatus</code>. Until this succeeds no write counts as
+   * replicated. Refreshes can run on different threads, so they run one at a time.
+   */
+  public synchronized void refresh() {
+    long now = System.currentTimeMillis();
+    if (now - configReadAt >= CONFIG_INTERVAL) {
+      readConfig();
+      configReadAt = now;
+    }
+    CommandResult status = mongo.getDB("admin").command(new BasicDBObject("replSetGetStatus", 1),
+        ReadPreference.primaryPreferred());
+    if (!status.ok()) {
+      secondariesOpTime = null;
+      return;
+    }
+    secondariesOpTime = getSecondariesOpTime(status, ignoredMembers);
+  }
+
+  /**
+   * Finds the hidden and delayed members in the replica set config. If the config can't be read, for lack of
+   * privileges, every secondary is waited for.
+   */
+  private void readConfig() {
+    try {
+      DBObject config = mongo.getDB("local").getCollection("system.replset").findOne();
+      ignoredMembers = config == null ? Collections.emptySet() : getIgnoredMembers(config);
+    } catch (MongoException e) {
+      ignoredMembers = Collections.emptySet();
+    }
+  }
+
+  /**
+   * @param config the replica set config, as kept in <code>local.system.replset</code>
+   * @return the <code>_id</code>s of the members which are hidden or delayed
+   */
+  public static Set<Object> getIgnoredMembers(DBObject config) {
+    Set<Object> ignored = new HashSet<>();
+    Object members = config.get("members");
+    if (members instanceof List) {
+      for (Object member : (List<?>) members) {
+        DBObject memberConfig = (DBObject) member;
+        // The delay was renamed in MongoDB 5.0
+        if (Boolean.TRUE.equals(memberConfig.get("hidden")) || isPositive(memberConfig.get("slaveDelay"))
+            || isPositive(memberConfig.get("secondaryDelaySecs"))) {
+          ignored.add(memberConfig.get("_id"));
+        }
+      }
+    }
+    return ignored;
+  }
+
+  /**
+   * @param status the result of <code>replSetGetStatus</code>
+   * @param ignored the <code>_id</code>s of the members to leave out
+   * @return the opTime of the secondary which is furthest behind, or null if there is no secondary or one of them
+   * can't tell how far it is
+   */
+  public static BSONTimestamp getSecondariesOpTime(DBObject status, Set<Object> ignored) {
+    BSONTimestamp oldest = null;
+    for (Object member : (List<?>) status.get("members")) {
+      DBObject state = (DBObject) member;
+      if (!"SECONDARY".equals(state.get("stateStr")) || ignored.contains(state.get("_id"))) {
+        continue;
+      }
+      BSONTimestamp opTime = toTimestamp(state.get("optime"));
+      if (opTime == null) {
+        // We can't tell how far it is, so nothing counts as replicated
+        return null;
+      }
+      if (oldest == null || opTime.compareTo(oldest) < 0) {
+        oldest = opTime;
+      }
+    }
+    return oldest;
+  }
+
+  private static boolean isPositive(Object value) {
+    return value instanceof Number && ((Number) value).doubleValue() > 0;
+  }
+
+  /**
+   * Forget the opTimes, for example when they can't be read
+   */
+  public void reset() {
+    secondariesOpTime = null;
+  }
+
+  /**
+   * @return true if every secondary has replicated the write with this opTime
+   */
+  public boolean isReplicated(BSONTimestamp opTime) {
+    BSONTimestamp replicated = secondariesOpTime;
+    return replicated != null && replicated.compareTo(opTime) >= 0;
+  }
+
+  /**
+   * @return the opTime of the newest entry in the oplog, which is no earlier than any acknowledged write, or null
+   * if there is no oplog
+   */
+  public BSONTimestamp getLatestOpTime() {
+    DBCursor cursor = mongo.getDB("local").getCollection("oplog.rs").find(new BasicDBObject(),
+        new BasicDBObject("ts", 1)).sort(new BasicDBObject("$natural", -1)).limit(1);
+    cursor.setReadPreference(ReadPreference.primary());
+    try {
+      return cursor.hasNext() ? (BSONTimestamp) cursor.next().get("ts") : null;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  public static String encode(BSONTimestamp opTime) {
+    return opTime.getTime() + ":" + opTime.getInc();
+  }
+
+  public static BSONTimestamp decode(String token) {
+    int colon = token.indexOf(':');
+    try {
+      if (colon > 0) {
+        return new BSONTimestamp(Integer.parseInt(token.substring(0, colon)),
+            Integer.parseInt(token.substring(colon + 1)));
+      }
+    } catch (NumberFormatException ignore) {
+    }
+    throw new IllegalArgumentException("Invalid op_time: " + token);
+  }
+
+  /**
+   * Since MongoDB 3.2 the opTime of a member can be a document holding the timestamp and the election term
+   */
+  static BSONTimestamp toTimestamp(Object opTime) {
+    if (opTime instanceof DBObject) {
+      opTime = ((DBObject) opTime).get("ts");
+    }
+    return opTime instanceof BSONTimestamp ? (BSONTimestamp) opTime : null;
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.vertx.mods;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Keeps the most recent operations which took longer than a threshold, newest first.<p>
+ * The log only holds the records. Building them, including running the explain of a sample of them, is up to the
+ * persistor.
+ */
+public class SlowOpLog {
+
+  private final long threshold;
+  private final double explainSampleRate;
+  private final int maxRecords;
+  private final String address;
+  private final Deque<JsonObject> records = new ArrayDeque<>();
+  private final Random random = new Random();
+
+  public SlowOpLog(JsonObject config) {
+    this.threshold = config.getLong("threshold_ms", 100);
+    Number sampleRate = config.getNumber("explain_sample_rate");
+    this.explainSampleRate = sampleRate == null ? 1.0 : sampleRate.doubleValue();
+    this.maxRecords = config.getInteger("max_records", 100);
+    this.address = config.getString("address");
+  }
+
+  /**
+   * @return true if an operation which took this long must be recorded
+   */
+  public boolean isSlow(long durationMillis) {
+    return durationMillis >= threshold;
+  }
+
+  /**
+   * @return true if the plan of the next slow operation should be captured, according to the sample rate
+   */
+  public boolean shouldExplain() {
+    synchronized (random) {
+      return random.nextDouble() < explainSampleRate;
+    }
+  }
+
+  /**
+   * @return the address records are published to, or null if they aren't published
+   */
+  public String getAddress() {
+    return address;
+  }
+
+  public synchronized void add(JsonObject record) {
+    records.addFirst(record);
+    while (records.size() > maxRecords) {
+      records.removeLast();
+    }
+  }
+
+  /**
+   * @param collection only return records of this collection, or all records if null
+   * @param limit the maximum number of records to return
+   */
+  public synchronized JsonArray getRecords(String collection, int limit) {
+    JsonArray result = new JsonArray();
+    Iterator<JsonObject> it = records.iterator();
+    while (it.hasNext() && result.size() < limit) {
+      JsonObject record = it.next();
+      if (collection == null || collection.equals(record.getString("collection"))) {
+        result.addObject(record.copy());
+      }
+    }
+    return result;
+  }
+}
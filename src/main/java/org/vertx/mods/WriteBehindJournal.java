@@ -0,0 +1,256 @@
+/*
+ * Copyright 2011-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.vertx.mods;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A journal of writes which have been accepted but not yet applied to MongoDB, kept in a memory-mapped file.<p>
+ * The file starts with a header holding the offset of the first record which hasn't been applied. Each record is
+ * its length, a CRC32 of its content and the content, which is a JSON object. The record after the last one always
+ * has a length of zero. The file is used as a ring: when a record doesn't fit at the end, a length of -1 is written
+ * and writing carries on from the beginning of the file, up to the oldest record which hasn't been applied.<p>
+ * On opening, records are read from the applied offset until a zero length or a record which fails its CRC check,
+ * so anything which wasn't applied before a restart is applied again.
+ */
+public class WriteBehindJournal {
+
+  private static final int MAGIC = 0x4d504a31;
+  private static final int HEADER_SIZE = 16;
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final int WRAP = -1;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final RandomAccessFile file;
+  private final FileLock lock;
+  private final MappedByteBuffer buffer;
+  private final int size;
+  private final boolean sync;
+  private int appliedOffset;
+  private int writeOffset;
+
+  /**
+   * @param path the journal file, which is created if it doesn't exist
+   * @param size the size of the journal file in bytes
+   * @param sync if true each record is forced to disk before it is acknowledged, otherwise that is left to the OS
+   */
+  public WriteBehindJournal(File path, int size, boolean sync) throws IOException {
+    this.file = new RandomAccessFile(path, "rw");
+    FileLock fileLock;
+    try {
+      fileLock = file.getChannel().tryLock();
+    } catch (OverlappingFileLockException e) {
+      // Locked by another journal in this JVM
+      fileLock = null;
+    }
+    if (fileLock == null) {
+      file.close();
+      throw new IOException("Journal " + path + " is in use by another process");
+    }
+    this.lock = fileLock;
+    if (file.length() > size) {
+      size = (int) file.length();
+    }
+    this.size = size;
+    this.sync = sync;
+    this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+    if (buffer.getInt(0) != MAGIC) {
+      buffer.putInt(HEADER_SIZE, 0);
+      buffer.putInt(4, 1);
+      buffer.putLong(8, HEADER_SIZE);
+      buffer.putInt(0, MAGIC);
+      buffer.force();
+    }
+    appliedOffset = (int) buffer.getLong(8);
+    writeOffset = appliedOffset;
+    boolean wrapped = false;
+    while (true) {
+      if (isWrap(writeOffset)) {
+        if (wrapped) {
+          break;
+        }
+        wrapped = true;
+        writeOffset = HEADER_SIZE;
+        continue;
+      }
+      byte[] content = readRecord(writeOffset);
+      if (content == null || wrapped && writeOffset + RECORD_HEADER_SIZE + content.length + 4 > appliedOffset) {
+        break;
+      }
+      writeOffset += RECORD_HEADER_SIZE + content.length;
+    }
+    buffer.putInt(writeOffset, 0);
+  }
+
+  /**
+   * Adds a record to the end of the journal
+   *
+   * @return false if there is no room for the record until more records have been applied
+   */
+  public synchronized boolean append(JsonObject entry) {
+    byte[] content = entry.encode().getBytes(UTF8);
+    int recordSize = RECORD_HEADER_SIZE + content.length;
+    if (writeOffset >= appliedOffset && writeOffset + recordSize + 4 > size) {
+      // No room at the end, so carry on from the beginning if the records there have been applied
+      if (HEADER_SIZE + recordSize + 4 > (writeOffset == appliedOffset ? size : appliedOffset)) {
+        return false;
+      }
+      buffer.putInt(HEADER_SIZE, 0);
+      buffer.putInt(writeOffset, WRAP);
+      if (writeOffset == appliedOffset) {
+        appliedOffset = HEADER_SIZE;
+        buffer.putLong(8, appliedOffset);
+      }
+      writeOffset = HEADER_SIZE;
+    }
+    // The zero length after the record must not overwrite the oldest record which hasn't been applied
+    if (writeOffset < appliedOffset && writeOffset + recordSize + 4 > appliedOffset) {
+      return false;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(content);
+
+    ByteBuffer target = buffer.duplicate();
+    target.position(writeOffset + RECORD_HEADER_SIZE);
+    target.put(content);
+    buffer.putInt(writeOffset + recordSize, 0);
+    buffer.putInt(writeOffset + 4, (int) crc.getValue());
+    // Writing the length last makes the record part of the journal
+    buffer.putInt(writeOffset, content.length);
+    writeOffset += recordSize;
+    if (sync) {
+      buffer.force();
+    }
+    return true;
+  }
+
+  /**
+   * Reads records which haven't been applied yet, starting with the oldest. Reading doesn't remove them, that is
+   * done by {@link #commit(Batch)} once they have been applied.
+   */
+  public synchronized Batch read(int max) {
+    List<JsonObject> entries = new ArrayList<>();
+    int offset = appliedOffset;
+    while (entries.size() < max && offset != writeOffset) {
+      if (isWrap(offset)) {
+        offset = HEADER_SIZE;
+        continue;
+      }
+      byte[] content = readRecord(offset);
+      if (content == null) {
+        break;
+      }
+      entries.add(new JsonObject(new String(content, UTF8)));
+      offset += RECORD_HEADER_SIZE + content.length;
+    }
+    return new Batch(entries, offset);
+  }
+
+  /**
+   * Marks the records of a batch as applied
+   */
+  public synchronized void commit(Batch batch) {
+    appliedOffset = batch.end;
+    buffer.putLong(8, appliedOffset);
+    if (appliedOffset == writeOffset) {
+      restart();
+    }
+    if (sync) {
+      buffer.force();
+    }
+  }
+
+  public synchronized boolean isEmpty() {
+    return appliedOffset == writeOffset;
+  }
+
+  /**
+   * @return the number of bytes of records which haven't been applied yet
+   */
+  public synchronized int getPendingBytes() {
+    if (writeOffset >= appliedOffset) {
+      return writeOffset - appliedOffset;
+    }
+    // Wrapped, this counts the unused space at the end of the file too
+    return size - appliedOffset + writeOffset - HEADER_SIZE;
+  }
+
+  public synchronized void close() throws IOException {
+    buffer.force();
+    lock.release();
+    file.close();
+  }
+
+  private boolean isWrap(int offset) {
+    return offset + 4 <= size && buffer.getInt(offset) == WRAP;
+  }
+
+  private void restart() {
+    buffer.putInt(HEADER_SIZE, 0);
+    buffer.putLong(8, HEADER_SIZE);
+    appliedOffset = HEADER_SIZE;
+    writeOffset = HEADER_SIZE;
+  }
+
+  private byte[] readRecord(int offset) {
+    if (offset + RECORD_HEADER_SIZE > size) {
+      return null;
+    }
+    int length = buffer.getInt(offset);
+    if (length <= 0 || offset + RECORD_HEADER_SIZE + length > size) {
+      return null;
+    }
+    byte[] content = new byte[length];
+    ByteBuffer source = buffer.duplicate();
+    source.position(offset + RECORD_HEADER_SIZE);
+    source.get(content);
+    CRC32 crc = new CRC32();
+    crc.update(content);
+    if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+      return null;
+    }
+    return content;
+  }
+
+  public static class Batch {
+    private final List<JsonObject> entries;
+    private final int end;
+
+    Batch(List<JsonObject> entries, int end) {
+      this.entries = entries;
+      this.end = end;
+    }
+
+    public List<JsonObject> getEntries() {
+      return entries;
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package org.vertx.mods.mongo.test.integration.java;
+/*
+ * Copyright 2013 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.mods.BatchEncoder;
+import org.vertx.mods.MongoUtil;
+
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+
+public class BatchEncoderTest {
+
+  @Test
+  public void testSameAsJsonReply() {
+    DBObject first = new BasicDBObject("_id", new ObjectId()).append("created", new Date(1404907200000L))
+        .append("name", "joe \"bloggs\"");
+    BasicDBList tags = new BasicDBList();
+    tags.add("a");
+    tags.add(1);
+    DBObject second = new BasicDBObject("_id", 2).append("tags", tags)
+        .append("address", new BasicDBObject("city", "Z\u00fcrich"));
+
+    BatchEncoder encoder = new BatchEncoder(true);
+    encoder.add(first);
+    encoder.add(second);
+    JsonObject reply = new JsonObject(encoder.finish("more-exist").toString());
+
+    assertEquals("more-exist", reply.getString("status"));
+    assertEquals(2, reply.getInteger("number").intValue());
+    JsonArray results = reply.getArray("results");
+    assertEquals(MongoUtil.convertBsonToJson(first), results.get(0));
+    assertEquals(MongoUtil.convertBsonToJson(second), results.get(1));
+  }
+
+  @Test
+  public void testPlainTypes() {
+    BatchEncoder encoder = new BatchEncoder(false);
+    encoder.add(new BasicDBObject("_id", "x").append("count", 3).append("nested", new BasicDBObject("ok", true)));
+    JsonObject reply = new JsonObject(encoder.finish("ok").toString());
+    JsonObject doc = reply.getArray("results").get(0);
+    assertEquals(3, doc.getInteger("count").intValue());
+    assertEquals(true, doc.getObject("nested").getBoolean("ok"));
+  }
+
+  @Test
+  public void testEmptyBatch() {
+    JsonObject reply = new JsonObject(new BatchEncoder(true).finish("ok").toString());
+    assertEquals(0, reply.getArray("results").size());
+    assertEquals(0, reply.getInteger("number").intValue());
+  }
+}
@@ -0,0 +1,98 @@
+package org.vertx.mods.mongo.test.integration.java;
+/*
+ * Copyright 2013 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import com.mongodb.MongoException;
+import com.mongodb.MongoServerSelectionException;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.mods.CircuitBreaker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+  private final CircuitBreaker breaker = new CircuitBreaker(new JsonObject()
+      .putNumber("window_ms", 1000)
+      .putNumber("min_requests", 4)
+      .putNumber("error_rate", 0.5)
+      .putNumber("open_ms", 500));
+
+  @Test
+  public void testOpensOnErrorRate() {
+    breaker.onSuccess(0);
+    breaker.onSuccess(10);
+    breaker.onFailure(20);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    breaker.onFailure(30);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest(40));
+    assertEquals(1, breaker.getStats().getLong("rejected").longValue());
+  }
+
+  @Test
+  public void testOldFailuresLeaveTheWindow() {
+    breaker.onFailure(0);
+    breaker.onFailure(10);
+    breaker.onFailure(20);
+    breaker.onSuccess(2000);
+    breaker.onFailure(2010);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void testProbeClosesOrReopens() {
+    for (int i = 0; i < 4; i++) {
+      breaker.onFailure(i);
+    }
+    assertFalse(breaker.allowRequest(100));
+    assertTrue(breaker.allowRequest(600));
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    // Only one probe at a time
+    assertFalse(breaker.allowRequest(610));
+    breaker.onFailure(620);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest(1000));
+    assertTrue(breaker.allowRequest(1120));
+    breaker.onSuccess(1130);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertTrue(breaker.allowRequest(1140));
+  }
+
+  @Test
+  public void testAbandonedProbeIsGivenBack() {
+    for (int i = 0; i < 4; i++) {
+      breaker.onFailure(i);
+    }
+    assertTrue(breaker.allowRequest(600));
+    // An invalid request says nothing about MongoDB, so the breaker stays half open for the next probe
+    breaker.onAbandoned();
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    assertTrue(breaker.allowRequest(610));
+    assertFalse(breaker.allowRequest(620));
+    breaker.onSuccess(630);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void testOutages() {
+    assertTrue(CircuitBreaker.isOutage(new MongoServerSelectionException("no primary")));
+    assertTrue(CircuitBreaker.isOutage(new MongoException(10107, "not master")));
+    assertFalse(CircuitBreaker.isOutage(new MongoException(11000, "duplicate key")));
+  }
+}
@@ -0,0 +1,76 @@
+package org.vertx.mods.mongo.test.integration.java;
+/*
+ * Copyright 2013 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.mods.CollectionRouter;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CollectionRouterTest {
+
+  // 2014-10-17T10:00:00Z
+  private static final long OCT_17 = 1413540000000L;
+  private static final List<String> EXISTING = Arrays.asList(
+      "events_2014_10_15", "events_2014_10_16", "events_2014_10_17", "events_archive", "other_2014_10_17");
+
+  private CollectionRouter router() {
+    return new CollectionRouter(new JsonObject()
+        .putObject("events", new JsonObject()
+            .putString("date_field", "ts")
+            .putNumber("retention", 2)));
+  }
+
+  @Test
+  public void testBucketFromDocumentDate() {
+    CollectionRouter router = router();
+    assertTrue(router.isRouted("events"));
+    assertFalse(router.isRouted("other"));
+
+    assertEquals("events_2014_10_17", router.getBucket("events", new JsonObject().putNumber("ts", OCT_17)));
+    assertEquals("events_2014_10_17", router.getBucket("events",
+        new JsonObject().putObject("ts", new JsonObject().putNumber("$date", OCT_17))));
+    assertEquals("events_2014_10_17", router.getBucket("events",
+        new JsonObject().putString("ts", "2014-10-17T23:30:00.000+02:00")));
+    assertNull(router.getBucket("events", new JsonObject().putString("name", "no date")));
+  }
+
+  @Test
+  public void testReadsOnlyBucketsInRange() {
+    CollectionRouter router = router();
+    JsonObject matcher = new JsonObject().putObject("ts", new JsonObject()
+        .putString("$gte", "2014-10-16T12:00:00Z")
+        .putNumber("$lt", OCT_17));
+
+    assertEquals(Arrays.asList("events_2014_10_16", "events_2014_10_17"), router.getBuckets("events", matcher, EXISTING));
+    assertEquals(Arrays.asList("events_2014_10_15", "events_2014_10_16", "events_2014_10_17"),
+        router.getBuckets("events", new JsonObject(), EXISTING));
+  }
+
+  @Test
+  public void testUpcomingAndExpiredBuckets() {
+    CollectionRouter router = router();
+    assertEquals(Arrays.asList("events_2014_10_17", "events_2014_10_18"), router.getUpcomingBuckets("events", OCT_17));
+    assertEquals(Arrays.asList("events_2014_10_15"), router.getExpiredBuckets("events", EXISTING, OCT_17));
+  }
+}
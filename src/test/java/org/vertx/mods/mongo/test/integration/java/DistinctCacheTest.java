@@ -0,0 +1,61 @@
+package org.vertx.mods.mongo.test.integration.java;
+/*
+ * Copyright 2013 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.mods.DistinctCache;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DistinctCacheTest {
+
+  private final DistinctCache cache = new DistinctCache(new JsonObject()
+      .putNumber("ttl_ms", 1000)
+      .putNumber("max_values", 3));
+
+  private final String key = DistinctCache.key("users", "country", new JsonObject().putBoolean("active", true));
+
+  @Test
+  public void testExpires() {
+    List<String> countries = Arrays.asList("ch", "de", "fr");
+    cache.put(key, countries, 0);
+    assertEquals(countries, cache.get(key, 999));
+    assertNull(cache.get(key, 1000));
+    assertEquals(1, cache.getStats().getLong("hits").longValue());
+    assertEquals(1, cache.getStats().getLong("misses").longValue());
+  }
+
+  @Test
+  public void testLargeResultsArentCached() {
+    cache.put(key, Arrays.asList("ch", "de", "fr", "it"), 0);
+    assertNull(cache.get(key, 0));
+  }
+
+  @Test
+  public void testWritesInvalidateTheirCollection() {
+    String other = DistinctCache.key("orders", "status", null);
+    cache.put(key, Arrays.asList("ch"), 0);
+    cache.put(other, Arrays.asList("open"), 0);
+    cache.invalidate("users");
+    assertNull(cache.get(key, 0));
+    assertEquals(Arrays.asList("open"), cache.get(other, 0));
+  }
+}
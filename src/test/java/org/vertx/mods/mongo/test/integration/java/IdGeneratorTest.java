@@ -0,0 +1,54 @@
+package org.vertx.mods.mongo.test.integration.java;
+/*
+ * Copyright 2013 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.mods.IdGenerator;
+import org.vertx.mods.MongoUtil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IdGeneratorTest {
+
+  @Test
+  public void testSequentialIdsAreOrdered() {
+    IdGenerator generator = IdGenerator.create("sequential", false);
+    String previous = (String) generator.generate();
+    for (int i = 0; i < 10000; i++) {
+      String id = (String) generator.generate();
+      assertEquals(24, id.length());
+      assertTrue(id.compareTo(previous) > 0);
+      previous = id;
+    }
+  }
+
+  @Test
+  public void testObjectIdConvertsToNativeType() {
+    IdGenerator generator = IdGenerator.create("objectid", true);
+    JsonObject doc = new JsonObject().putValue("_id", generator.generate());
+    DBObject converted = MongoUtil.convertJsonToBson(doc);
+    assertTrue(converted.get("_id") instanceof ObjectId);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testObjectIdNeedsMongoTypes() {
+    IdGenerator.create("objectid", false);
+  }
+}
@@ -0,0 +1,75 @@
+package org.vertx.mods.mongo.test.integration.java;
+/*
+ * Copyright 2013 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.mods.BatchMessage;
+import org.vertx.mods.IncCombiner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IncCombinerTest {
+
+  private final IncCombiner combiner = new IncCombiner(new JsonArray().addString("counters"));
+  private final JsonObject criteria = new JsonObject().putString("_id", "page");
+
+  @Test
+  public void testOnlyIncByIdIsCombined() {
+    assertTrue(combiner.canCombine("counters", criteria, inc("views", 1), false));
+    assertFalse(combiner.canCombine("counters", criteria, inc("views", 1), true));
+    assertFalse(combiner.canCombine("other", criteria, inc("views", 1), false));
+    assertFalse(combiner.canCombine("counters", new JsonObject().putString("name", "page"), inc("views", 1), false));
+    assertFalse(combiner.canCombine("counters", criteria,
+        new JsonObject().putObject("$set", new JsonObject().putNumber("views", 1)), false));
+  }
+
+  @Test
+  public void testIncrementsAreSummed() {
+    String key = combiner.add("counters", criteria, inc("views", 1), false, new BatchMessage(new JsonObject()));
+    assertNotNull(key);
+    assertNull(combiner.add("counters", criteria, inc("views", 2), false, new BatchMessage(new JsonObject())));
+    assertNull(combiner.add("counters", criteria, inc("clicks", 0.5), false, new BatchMessage(new JsonObject())));
+
+    IncCombiner.Combined combined = combiner.take(key);
+    assertEquals(3, combined.getMessages().size());
+    JsonObject sums = combined.getObjNew().getObject("$inc");
+    assertEquals(3, ((Number) sums.getField("views")).intValue());
+    assertEquals(0.5, ((Number) sums.getField("clicks")).doubleValue(), 0);
+
+    // Once taken, a new update starts a new combined update
+    assertNotNull(combiner.add("counters", criteria, inc("views", 1), false, new BatchMessage(new JsonObject())));
+  }
+
+  @Test
+  public void testTakeAll() {
+    String key = combiner.add("counters", criteria, inc("views", 1), false, new BatchMessage(new JsonObject()));
+    combiner.add("counters", new JsonObject().putString("_id", "home"), inc("views", 1), false,
+        new BatchMessage(new JsonObject()));
+    assertEquals(2, combiner.takeAll().size());
+    assertNull(combiner.take(key));
+    assertTrue(combiner.takeAll().isEmpty());
+  }
+
+  private static JsonObject inc(String field, Number value) {
+    return new JsonObject().putObject("$inc", new JsonObject().putNumber(field, value));
+  }
+}
@@ -0,0 +1,66 @@
+package org.vertx.mods.mongo.test.integration.java;
+/*
+ * Copyright 2013 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.junit.Test;
+import org.vertx.mods.KeyDistribution;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+public class KeyDistributionTest {
+
+  private static final int RECORDS = 1000;
+  private static final int SAMPLES = 100000;
+
+  private int[] sample(String distribution, long records) {
+    KeyDistribution keys = KeyDistribution.create(distribution, RECORDS, new Random(42));
+    int[] counts = new int[(int) records];
+    for (int i = 0; i < SAMPLES; i++) {
+      long key = keys.next(records);
+      assertTrue(key >= 0 && key < records);
+      counts[(int) key]++;
+    }
+    return counts;
+  }
+
+  private static int max(int[] counts) {
+    int max = 0;
+    for (int count : counts) {
+      max = Math.max(max, count);
+    }
+    return max;
+  }
+
+  @Test
+  public void testUniformIsEven() {
+    assertTrue(max(sample("uniform", RECORDS)) < 3 * SAMPLES / RECORDS);
+  }
+
+  @Test
+  public void testZipfianIsSkewed() {
+    // The most popular record of a 1000 record zipfian gets over a tenth of the operations
+    assertTrue(max(sample("zipfian", RECORDS)) > SAMPLES / 10);
+  }
+
+  @Test
+  public void testLatestFavoursNewRecords() {
+    int[] counts = sample("latest", 2 * RECORDS);
+    assertTrue(counts[2 * RECORDS - 1] > SAMPLES / 10);
+    assertTrue(counts[2 * RECORDS - 1] > counts[RECORDS]);
+  }
+}
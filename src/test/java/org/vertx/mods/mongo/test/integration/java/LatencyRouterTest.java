@@ -0,0 +1,49 @@
+package org.vertx.mods.mongo.test.integration.java;
+/*
+ * Copyright 2013 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import org.junit.Test;
+import org.vertx.mods.LatencyRouter;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyRouterTest {
+
+  @Test
+  public void testOnlyPrimaryAndSecondariesAreRead() {
+    BasicDBList hosts = new BasicDBList();
+    hosts.addAll(Arrays.asList("a:27017", "b:27017", "c:27017", "d:27017", "e:27017"));
+    BasicDBList members = new BasicDBList();
+    members.add(member("a:27017", "PRIMARY"));
+    members.add(member("b:27017", "SECONDARY"));
+    members.add(member("c:27017", "RECOVERING"));
+    members.add(member("d:27017", "STARTUP2"));
+    members.add(member("e:27017", "ROLLBACK"));
+    // Hidden, so not listed by isMaster
+    members.add(member("f:27017", "SECONDARY"));
+    assertEquals(new HashSet<>(Arrays.asList("a:27017", "b:27017")),
+        LatencyRouter.getReadableMembers(new BasicDBObject("hosts", hosts), new BasicDBObject("members", members)));
+  }
+
+  private static BasicDBObject member(String name, String state) {
+    return new BasicDBObject("name", name).append("stateStr", state);
+  }
+}
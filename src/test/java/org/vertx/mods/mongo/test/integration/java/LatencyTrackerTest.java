@@ -0,0 +1,57 @@
+package org.vertx.mods.mongo.test.integration.java;
+/*
+ * Copyright 2013 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.junit.Test;
+import org.vertx.mods.LatencyTracker;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyTrackerTest {
+
+  private final LatencyTracker tracker = new LatencyTracker(0.5, 10);
+
+  @Test
+  public void testFastestFirst() {
+    tracker.record("a:27017", 3000000);
+    tracker.record("b:27017", 1000000);
+    assertEquals(Arrays.asList("c:27017", "b:27017", "a:27017"),
+        tracker.rank(Arrays.asList("a:27017", "b:27017", "c:27017")));
+  }
+
+  @Test
+  public void testAverageFollowsSlowdown() {
+    tracker.record("a:27017", 1000);
+    tracker.record("a:27017", 3000);
+    assertEquals(2000, tracker.getAverage("a:27017"), 0.001);
+    tracker.record("a:27017", 4000);
+    assertEquals(3000, tracker.getAverage("a:27017"), 0.001);
+  }
+
+  @Test
+  public void testPercentileOfRecentReads() {
+    assertEquals(-1, tracker.getPercentile("a:27017", 90));
+    for (int i = 1; i <= 20; i++) {
+      tracker.record("a:27017", i);
+    }
+    // Only the last 10 reads, 11 to 20, are kept
+    assertEquals(11, tracker.getPercentile("a:27017", 0));
+    assertEquals(19, tracker.getPercentile("a:27017", 90));
+    assertEquals(20, tracker.getPercentile("a:27017", 100));
+  }
+}
@@ -0,0 +1,58 @@
+package org.vertx.mods.mongo.test.integration.java;
+/*
+ * Copyright 2013 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.mods.LoadGenerator;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.assertTrue;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+public class LoadGeneratorTest extends PersistorTestParent {
+
+  @Test
+  public void testWorkload() throws Exception {
+    eb.registerHandler("test.load.report", new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> message) {
+        JsonObject report = message.body();
+        assertEquals(200, report.getNumber("operations").intValue());
+        assertEquals(0, report.getNumber("errors").intValue());
+        assertTrue(report.getObject("actions").getObject("findone").getNumber("p95_ms").doubleValue() > 0);
+        testComplete();
+      }
+    });
+
+    JsonObject config = new JsonObject()
+            .putString("persistor", ADDRESS)
+            .putString("collection", COLLECTION)
+            .putNumber("record_count", 50)
+            .putNumber("operation_count", 200)
+            .putNumber("concurrency", 4)
+            .putString("distribution", "latest")
+            .putObject("mix", new JsonObject()
+                    .putNumber("save", 0.1)
+                    .putNumber("findone", 0.5)
+                    .putNumber("find", 0.2)
+                    .putNumber("update", 0.1)
+                    .putNumber("aggregate", 0.1))
+            .putString("report_address", "test.load.report");
+    container.deployVerticle(LoadGenerator.class.getName(), config);
+  }
+}
@@ -0,0 +1,136 @@
+package org.vertx.mods.mongo.test.integration.java;
+/*
+ * Copyright 2013 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.ServerAddress;
+import org.junit.Test;
+import org.vertx.mods.MergedCursor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MergedCursorTest {
+
+  @Test
+  public void testMergesInSortOrder() {
+    MergedCursor cursor = new MergedCursor(Arrays.asList(
+        cursor(1, 4, 7), cursor(2, 5, 8), cursor(3, 6, 9)), new BasicDBObject("n", 1), -1, -1);
+
+    assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9), drain(cursor));
+  }
+
+  @Test
+  public void testMergesDescending() {
+    MergedCursor cursor = new MergedCursor(Arrays.asList(
+        cursor(7, 4, 1), cursor(9, 8, 2)), new BasicDBObject("n", -1), -1, -1);
+
+    assertEquals(Arrays.asList(9, 8, 7, 4, 2, 1), drain(cursor));
+  }
+
+  @Test
+  public void testSkipAndLimitApplyToMergedResult() {
+    TestCursor first = cursor(1, 3, 5, 7, 9);
+    TestCursor second = cursor(2, 4, 6, 8, 10);
+    MergedCursor cursor = new MergedCursor(Arrays.asList(first, second), new BasicDBObject("n", 1), 2, 3);
+
+    assertEquals(Arrays.asList(3, 4, 5), drain(cursor));
+    // Neither partition was read to the end
+    assertTrue(first.read < 5);
+    assertTrue(second.read < 5);
+  }
+
+  @Test
+  public void testConcatenatesWithoutSort() {
+    MergedCursor cursor = new MergedCursor(Arrays.asList(cursor(5, 1), cursor(4, 2)), null, -1, -1);
+
+    assertEquals(Arrays.asList(5, 1, 4, 2), drain(cursor));
+  }
+
+  @Test
+  public void testCloseClosesAllCursors() {
+    TestCursor first = cursor(1);
+    TestCursor second = cursor(2);
+    new MergedCursor(Arrays.asList(first, second), null, -1, -1).close();
+
+    assertTrue(first.closed);
+    assertTrue(second.closed);
+  }
+
+  private static List<Integer> drain(Cursor cursor) {
+    List<Integer> values = new ArrayList<>();
+    while (cursor.hasNext()) {
+      values.add((Integer) cursor.next().get("n"));
+    }
+    return values;
+  }
+
+  private static TestCursor cursor(Integer... values) {
+    List<DBObject> docs = new ArrayList<>();
+    for (Integer value : values) {
+      docs.add(new BasicDBObject("n", value));
+    }
+    return new TestCursor(docs.iterator());
+  }
+
+  private static class TestCursor implements Cursor {
+    private final Iterator<DBObject> iterator;
+    int read;
+    boolean closed;
+
+    TestCursor(Iterator<DBObject> iterator) {
+      this.iterator = iterator;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return iterator.hasNext();
+    }
+
+    @Override
+    public DBObject next() {
+      read++;
+      return iterator.next();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long getCursorId() {
+      return 0;
+    }
+
+    @Override
+    public ServerAddress getServerAddress() {
+      return null;
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+}
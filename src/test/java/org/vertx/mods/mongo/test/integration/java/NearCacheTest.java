@@ -0,0 +1,115 @@
+package org.vertx.mods.mongo.test.integration.java;
+/*
+ * Copyright 2013 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import com.mongodb.BasicDBObject;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.impl.JULLogDelegateFactory;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.mods.NearCache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class NearCacheTest {
+
+  private final NearCache cache = new NearCache(null, "db", new JsonObject()
+      .putArray("collections", new JsonArray().addString("users").addString("orders"))
+      .putNumber("max_entries", 2), new Logger(new JULLogDelegateFactory().createDelegate("NearCacheTest")));
+
+  @Before
+  public void setUp() {
+    cache.setEnabled(true);
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() {
+    put("users", "tim");
+    put("users", "bob");
+    assertNotNull(cache.get("users", "tim"));
+    put("users", "joe");
+    assertNull(cache.get("users", "bob"));
+    assertNotNull(cache.get("users", "tim"));
+    assertNotNull(cache.get("users", "joe"));
+    assertEquals(2, cache.getStats().getInteger("size").intValue());
+  }
+
+  @Test
+  public void testNothingIsCachedWhileDisabled() {
+    put("users", "tim");
+    cache.setEnabled(false);
+    assertNull(cache.get("users", "tim"));
+    assertNotNull(cache.getStale("users", "tim"));
+  }
+
+  @Test
+  public void testReenablingEvictsEverything() {
+    put("users", "tim");
+    put("orders", "bob");
+    cache.setEnabled(false);
+    // The tailer replays this once it is back, but not the changes it has yet to catch up with
+    cache.apply(new BasicDBObject("op", "u").append("ns", "db.users")
+        .append("o2", new BasicDBObject("_id", "tim")).append("o", new BasicDBObject("$set", new BasicDBObject("age", 41))));
+    cache.setEnabled(true);
+    assertNull(cache.get("users", "tim"));
+    assertNull(cache.get("orders", "bob"));
+
+    put("orders", "bob");
+    cache.setEnabled(true);
+    assertNotNull(cache.get("orders", "bob"));
+  }
+
+  @Test
+  public void testOplogEntriesEvictWhatTheyChanged() {
+    put("users", "tim");
+    put("orders", "tim");
+    cache.apply(new BasicDBObject("op", "u").append("ns", "db.users")
+        .append("o2", new BasicDBObject("_id", "tim")).append("o", new BasicDBObject("$set", new BasicDBObject("age", 41))));
+    assertNull(cache.get("users", "tim"));
+    assertNotNull(cache.get("orders", "tim"));
+
+    ObjectId id = new ObjectId();
+    JsonObject jsonId = new JsonObject().putString("$oid", id.toString());
+    cache.put("users", jsonId, new JsonObject().putObject("_id", jsonId), cache.getGeneration("users"));
+    cache.apply(new BasicDBObject("op", "d").append("ns", "db.users").append("o", new BasicDBObject("_id", id)));
+    assertNull(cache.get("users", jsonId));
+
+    // Commands such as drop could have changed anything
+    cache.apply(new BasicDBObject("op", "c").append("ns", "db.$cmd").append("o", new BasicDBObject("drop", "other")));
+    assertNull(cache.get("orders", "tim"));
+  }
+
+  @Test
+  public void testDocumentChangedWhileReadIsNotCached() {
+    long generation = cache.getGeneration("users");
+    // Another write evicts the document between the read and the put
+    cache.invalidate("users", "tim");
+    cache.put("users", "tim", new JsonObject().putString("_id", "tim"), generation);
+    assertNull(cache.get("users", "tim"));
+
+    put("users", "tim");
+    assertNotNull(cache.get("users", "tim"));
+  }
+
+  private void put(String collection, String id) {
+    cache.put(collection, id, new JsonObject().putString("_id", id), cache.getGeneration(collection));
+  }
+}
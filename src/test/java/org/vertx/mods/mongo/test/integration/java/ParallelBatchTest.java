@@ -0,0 +1,74 @@
+package org.vertx.mods.mongo.test.integration.java;
+/*
+ * Copyright 2013 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+public class ParallelBatchTest extends PersistorTestParent {
+
+  @Override
+  protected JsonObject getConfig() {
+    JsonObject config = super.getConfig();
+    // A single worker, which the operations of a parallel batch keep busy
+    config.putNumber("worker_threads", 1);
+    return config;
+  }
+
+  @Test
+  public void testPartitionedFinds() throws Exception {
+    deleteAll(new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> reply) {
+        assertEquals("ok", reply.body().getString("status"));
+        JsonObject save = new JsonObject()
+                .putString("collection", COLLECTION)
+                .putString("action", "save")
+                .putObject("document", new JsonObject().putString("name", "joe bloggs"));
+
+        eb.send(ADDRESS, save, new Handler<Message<JsonObject>>() {
+          public void handle(Message<JsonObject> reply) {
+            assertEquals("ok", reply.body().getString("status"));
+            JsonObject find = new JsonObject()
+                    .putString("action", "find")
+                    .putArray("collections", new JsonArray().addString(COLLECTION).addString(COLLECTION + "_other"))
+                    .putObject("matcher", new JsonObject().putString("name", "joe bloggs"));
+            JsonObject batch = new JsonObject()
+                    .putString("action", "batch")
+                    .putBoolean("parallel", true)
+                    .putArray("operations", new JsonArray().addObject(find).addObject(find.copy()));
+
+            eb.send(ADDRESS, batch, new Handler<Message<JsonObject>>() {
+              public void handle(Message<JsonObject> reply) {
+                assertEquals("ok", reply.body().getString("status"));
+                for (Object result : reply.body().getArray("results")) {
+                  assertEquals("ok", ((JsonObject) result).getString("status"));
+                  assertEquals(1, ((JsonObject) result).getArray("results").size());
+                }
+                testComplete();
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+}
@@ -23,9 +23,12 @@ import org.vertx.java.core.eventbus.Message;
 import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.assertTrue;
 import static org.vertx.testtools.VertxAssert.testComplete;
 
 public class PersistorTest extends PersistorTestParent {
@@ -93,5 +96,422 @@ public class PersistorTest extends PersistorTestParent {
     });
   }
 
-}
+  @Test
+  public void testBatch() throws Exception {
+    deleteAll(new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> reply) {
+        assertEquals("ok", reply.body().getString("status"));
+        JsonObject doc = new JsonObject().putString("_id", "batched").putString("name", "joe bloggs");
+        JsonArray operations = new JsonArray()
+                .addObject(new JsonObject()
+                        .putString("action", "save")
+                        .putString("collection", COLLECTION)
+                        .putObject("document", doc))
+                .addObject(new JsonObject()
+                        .putString("action", "count")
+                        .putString("collection", COLLECTION))
+                .addObject(new JsonObject()
+                        .putString("action", "no_such_action"));
+
+        JsonObject batch = new JsonObject()
+                .putString("action", "batch")
+                .putArray("operations", operations);
+
+        eb.send(ADDRESS, batch, new Handler<Message<JsonObject>>() {
+          public void handle(Message<JsonObject> reply) {
+            assertEquals("ok", reply.body().getString("status"));
+            JsonArray results = reply.body().getArray("results");
+            assertEquals(3, results.size());
+            assertEquals("ok", ((JsonObject) results.get(0)).getString("status"));
+            assertEquals(1, ((JsonObject) results.get(1)).getNumber("count").intValue());
+            assertEquals("error", ((JsonObject) results.get(2)).getString("status"));
+            testComplete();
+          }
+        });
+      }
+    });
+  }
+
+  @Test
+  public void testPastDeadline() throws Exception {
+    JsonObject find = new JsonObject()
+            .putString("collection", COLLECTION)
+            .putString("action", "find")
+            .putNumber("deadline", System.currentTimeMillis() - 1000);
+
+    eb.send(ADDRESS, find, new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> reply) {
+        assertEquals("error", reply.body().getString("status"));
+        assertEquals("deadline exceeded", reply.body().getString("message"));
+        testComplete();
+      }
+    });
+  }
+
+  @Test
+  public void testBatchDeadline() throws Exception {
+    JsonArray operations = new JsonArray()
+            .addObject(new JsonObject()
+                    .putString("action", "find")
+                    .putString("collection", COLLECTION))
+            .addObject(new JsonObject()
+                    .putString("action", "count")
+                    .putString("collection", COLLECTION)
+                    .putNumber("deadline", System.currentTimeMillis() + 60000));
+
+    JsonObject batch = new JsonObject()
+            .putString("action", "batch")
+            .putNumber("deadline", System.currentTimeMillis() - 1000)
+            .putArray("operations", operations);
+
+    eb.send(ADDRESS, batch, new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> reply) {
+        assertEquals("ok", reply.body().getString("status"));
+        JsonArray results = reply.body().getArray("results");
+        // The find has the deadline of the batch, the count one of its own
+        assertEquals("deadline exceeded", ((JsonObject) results.get(0)).getString("message"));
+        assertEquals("ok", ((JsonObject) results.get(1)).getString("status"));
+        testComplete();
+      }
+    });
+  }
+
+  @Test
+  public void testFindByIds() throws Exception {
+    deleteAll(new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> reply) {
+        assertEquals("ok", reply.body().getString("status"));
+        JsonObject doc = new JsonObject().putString("_id", "found").putString("name", "joe bloggs");
+        JsonObject save = new JsonObject()
+                .putString("collection", COLLECTION)
+                .putString("action", "save")
+                .putObject("document", doc);
+
+        eb.send(ADDRESS, save, new Handler<Message<JsonObject>>() {
+          public void handle(Message<JsonObject> reply) {
+            assertEquals("ok", reply.body().getString("status"));
+            JsonObject findByIds = new JsonObject()
+                    .putString("collection", COLLECTION)
+                    .putString("action", "find_by_ids")
+                    .putArray("ids", new JsonArray().addString("found").addString("not-found")
+                            .addString("not-found").addString("found"));
+
+            eb.send(ADDRESS, findByIds, new Handler<Message<JsonObject>>() {
+              public void handle(Message<JsonObject> reply) {
+                assertEquals("ok", reply.body().getString("status"));
+                JsonObject results = reply.body().getObject("results");
+                assertEquals("joe bloggs", results.getObject("found").getString("name"));
+                assertEquals(null, results.getObject("not-found"));
+                assertEquals(1, reply.body().getArray("missing").size());
+                testComplete();
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+
+  @Test
+  public void testIndexes() throws Exception {
+    JsonObject ensure = new JsonObject()
+            .putString("collection", COLLECTION)
+            .putString("action", "ensure_index")
+            .putObject("keys", new JsonObject().putNumber("name", 1).putNumber("age", -1))
+            .putString("name", "name_idx")
+            .putBoolean("sparse", true);
+
+    eb.send(ADDRESS, ensure, new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> reply) {
+        assertEquals("ok", reply.body().getString("status"));
+        JsonObject list = new JsonObject()
+                .putString("collection", COLLECTION)
+                .putString("action", "list_indexes");
 
+        eb.send(ADDRESS, list, new Handler<Message<JsonObject>>() {
+          public void handle(Message<JsonObject> reply) {
+            assertEquals("ok", reply.body().getString("status"));
+            boolean found = false;
+            for (Object index : reply.body().getArray("indexes")) {
+              if ("name_idx".equals(((JsonObject) index).getString("name"))) {
+                found = true;
+                JsonObject keys = ((JsonObject) index).getObject("key");
+                assertEquals(Arrays.asList("name", "age"), new ArrayList<>(keys.getFieldNames()));
+              }
+            }
+            assertTrue(found);
+            JsonObject drop = new JsonObject()
+                    .putString("collection", COLLECTION)
+                    .putString("action", "drop_index")
+                    .putString("name", "name_idx");
+
+            eb.send(ADDRESS, drop, new Handler<Message<JsonObject>>() {
+              public void handle(Message<JsonObject> reply) {
+                assertEquals("ok", reply.body().getString("status"));
+                testComplete();
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+
+  @Test
+  public void testBackgroundDelete() throws Exception {
+    deleteAll(new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> reply) {
+        assertEquals("ok", reply.body().getString("status"));
+        saveNamed(25, "purged", new Handler<Message<JsonObject>>() {
+          public void handle(Message<JsonObject> reply) {
+            assertEquals("ok", reply.body().getString("status"));
+            JsonObject delete = new JsonObject()
+                    .putString("collection", COLLECTION)
+                    .putString("action", "delete")
+                    .putObject("matcher", new JsonObject().putString("name", "purged"))
+                    .putBoolean("background", true)
+                    .putNumber("chunk_size", 10);
+
+            eb.send(ADDRESS, delete, new Handler<Message<JsonObject>>() {
+              public void handle(Message<JsonObject> reply) {
+                assertEquals("ok", reply.body().getString("status"));
+                final JsonObject status = new JsonObject()
+                        .putString("action", "job_status")
+                        .putString("job_id", reply.body().getString("job_id"));
+
+                vertx.setPeriodic(50, new Handler<Long>() {
+                  public void handle(final Long timerID) {
+                    eb.send(ADDRESS, status, new Handler<Message<JsonObject>>() {
+                      public void handle(Message<JsonObject> reply) {
+                        JsonObject job = reply.body().getObject("job");
+                        if (!"done".equals(job.getString("state"))) {
+                          return;
+                        }
+                        vertx.cancelTimer(timerID);
+                        assertEquals(25, job.getNumber("number").intValue());
+                        assertEquals(3, job.getNumber("chunks").intValue());
+                        testComplete();
+                      }
+                    });
+                  }
+                });
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+
+  @Test
+  public void testBackgroundUpdate() throws Exception {
+    deleteAll(new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> reply) {
+        assertEquals("ok", reply.body().getString("status"));
+        saveNamed(25, "pending", new Handler<Message<JsonObject>>() {
+          public void handle(Message<JsonObject> reply) {
+            assertEquals("ok", reply.body().getString("status"));
+            final JsonObject update = new JsonObject()
+                    .putString("collection", COLLECTION)
+                    .putString("action", "update")
+                    .putObject("criteria", new JsonObject().putString("name", "pending"))
+                    .putObject("objNew", new JsonObject().putString("name", "replaced"))
+                    .putBoolean("multi", true)
+                    .putBoolean("background", true)
+                    .putNumber("chunk_size", 10);
+
+            eb.send(ADDRESS, update, new Handler<Message<JsonObject>>() {
+              public void handle(Message<JsonObject> reply) {
+                // A replacement would turn every matching document into the same one
+                assertEquals("error", reply.body().getString("status"));
+                update.putObject("objNew", new JsonObject()
+                        .putObject("$set", new JsonObject().putString("name", "processed")));
+                update.putBoolean("multi", false);
+
+                eb.send(ADDRESS, update, new Handler<Message<JsonObject>>() {
+                  public void handle(Message<JsonObject> reply) {
+                    assertEquals("error", reply.body().getString("status"));
+                    update.putBoolean("multi", true);
+
+                    eb.send(ADDRESS, update, new Handler<Message<JsonObject>>() {
+                      public void handle(Message<JsonObject> reply) {
+                        assertEquals("ok", reply.body().getString("status"));
+                        final JsonObject status = new JsonObject()
+                                .putString("action", "job_status")
+                                .putString("job_id", reply.body().getString("job_id"));
+
+                        vertx.setPeriodic(50, new Handler<Long>() {
+                          public void handle(final Long timerID) {
+                            eb.send(ADDRESS, status, new Handler<Message<JsonObject>>() {
+                              public void handle(Message<JsonObject> reply) {
+                                JsonObject job = reply.body().getObject("job");
+                                if (!"done".equals(job.getString("state"))) {
+                                  return;
+                                }
+                                vertx.cancelTimer(timerID);
+                                assertEquals("update", job.getString("action"));
+                                assertEquals(25, job.getNumber("number").intValue());
+                                JsonObject count = new JsonObject()
+                                        .putString("collection", COLLECTION)
+                                        .putString("action", "count")
+                                        .putObject("matcher", new JsonObject().putString("name", "processed"));
+
+                                eb.send(ADDRESS, count, new Handler<Message<JsonObject>>() {
+                                  public void handle(Message<JsonObject> reply) {
+                                    assertEquals("ok", reply.body().getString("status"));
+                                    assertEquals(25, reply.body().getNumber("count").intValue());
+                                    testComplete();
+                                  }
+                                });
+                              }
+                            });
+                          }
+                        });
+                      }
+                    });
+                  }
+                });
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+
+  @Test
+  public void testCancelJob() throws Exception {
+    deleteAll(new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> reply) {
+        assertEquals("ok", reply.body().getString("status"));
+        saveNamed(25, "purged", new Handler<Message<JsonObject>>() {
+          public void handle(Message<JsonObject> reply) {
+            assertEquals("ok", reply.body().getString("status"));
+            // Five documents a second, so the job is still running when it is cancelled
+            JsonObject delete = new JsonObject()
+                    .putString("collection", COLLECTION)
+                    .putString("action", "delete")
+                    .putObject("matcher", new JsonObject().putString("name", "purged"))
+                    .putBoolean("background", true)
+                    .putNumber("chunk_size", 5)
+                    .putNumber("docs_per_second", 5);
+
+            eb.send(ADDRESS, delete, new Handler<Message<JsonObject>>() {
+              public void handle(Message<JsonObject> reply) {
+                assertEquals("ok", reply.body().getString("status"));
+                final String jobId = reply.body().getString("job_id");
+                JsonObject cancel = new JsonObject()
+                        .putString("action", "cancel_job")
+                        .putString("job_id", jobId);
+
+                eb.send(ADDRESS, cancel, new Handler<Message<JsonObject>>() {
+                  public void handle(Message<JsonObject> reply) {
+                    assertEquals("ok", reply.body().getString("status"));
+                    final JsonObject status = new JsonObject()
+                            .putString("action", "job_status")
+                            .putString("job_id", jobId);
+
+                    vertx.setPeriodic(50, new Handler<Long>() {
+                      public void handle(final Long timerID) {
+                        eb.send(ADDRESS, status, new Handler<Message<JsonObject>>() {
+                          public void handle(Message<JsonObject> reply) {
+                            JsonObject job = reply.body().getObject("job");
+                            if (job.getNumber("finished") == null) {
+                              return;
+                            }
+                            vertx.cancelTimer(timerID);
+                            assertEquals("cancelled", job.getString("state"));
+                            assertTrue(job.getNumber("number").intValue() < 25);
+                            JsonObject unknown = new JsonObject()
+                                    .putString("action", "cancel_job")
+                                    .putString("job_id", "no-such-job");
+
+                            eb.send(ADDRESS, unknown, new Handler<Message<JsonObject>>() {
+                              public void handle(Message<JsonObject> reply) {
+                                assertEquals("error", reply.body().getString("status"));
+                                testComplete();
+                              }
+                            });
+                          }
+                        });
+                      }
+                    });
+                  }
+                });
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+
+  @Test
+  public void testDistinct() throws Exception {
+    deleteAll(new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> reply) {
+        assertEquals("ok", reply.body().getString("status"));
+        JsonArray operations = new JsonArray();
+        String[] countries = {"ch", "de", "ch", "fr", "de"};
+        for (String country : countries) {
+          operations.addObject(new JsonObject()
+                  .putString("action", "save")
+                  .putString("collection", COLLECTION)
+                  .putObject("document", new JsonObject().putString("country", country)));
+        }
+        JsonObject batch = new JsonObject()
+                .putString("action", "batch")
+                .putArray("operations", operations);
+
+        eb.send(ADDRESS, batch, new Handler<Message<JsonObject>>() {
+          public void handle(Message<JsonObject> reply) {
+            assertEquals("ok", reply.body().getString("status"));
+            JsonObject distinct = new JsonObject()
+                    .putString("collection", COLLECTION)
+                    .putString("action", "distinct")
+                    .putString("key", "country")
+                    .putObject("matcher", new JsonObject().putObject("country",
+                            new JsonObject().putString("$ne", "fr")))
+                    .putNumber("batch_size", 1);
+
+            eb.send(ADDRESS, distinct, new Handler<Message<JsonObject>>() {
+              public void handle(Message<JsonObject> reply) {
+                assertEquals("more-exist", reply.body().getString("status"));
+                assertEquals(1, reply.body().getArray("results").size());
+                final Object first = reply.body().getArray("results").get(0);
+
+                reply.reply(new JsonObject(), new Handler<Message<JsonObject>>() {
+                  public void handle(Message<JsonObject> reply) {
+                    assertEquals("ok", reply.body().getString("status"));
+                    Object second = reply.body().getArray("results").get(0);
+                    assertTrue(!first.equals(second));
+                    assertTrue("ch".equals(second) || "de".equals(second));
+                    testComplete();
+                  }
+                });
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Saves documents with _ids from 0 to count - 1 and the given name, in one batch
+   */
+  private void saveNamed(int count, String name, Handler<Message<JsonObject>> handler) {
+    JsonArray operations = new JsonArray();
+    for (int i = 0; i < count; i++) {
+      operations.addObject(new JsonObject()
+              .putString("action", "save")
+              .putString("collection", COLLECTION)
+              .putObject("document", new JsonObject().putNumber("_id", i).putString("name", name)));
+    }
+    JsonObject batch = new JsonObject()
+            .putString("action", "batch")
+            .putArray("operations", operations);
+
+    eb.send(ADDRESS, batch, handler);
+  }
+}
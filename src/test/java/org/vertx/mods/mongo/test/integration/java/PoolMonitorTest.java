@@ -0,0 +1,119 @@
+package org.vertx.mods.mongo.test.integration.java;
+/*
+ * Copyright 2013 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import com.mongodb.ConnectionPoolStatisticsMBean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.mods.PoolMonitor;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PoolMonitorTest {
+
+  private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+  private final Pool pool = new Pool();
+  private ObjectName ours;
+  private ObjectName others;
+
+  @Before
+  public void setUp() throws Exception {
+    ours = new ObjectName("org.mongodb.driver:type=ConnectionPool,clusterId=1,host=db1,port=27017,description=test-a");
+    others = new ObjectName("org.mongodb.driver:type=ConnectionPool,clusterId=2,host=db2,port=27017,description=test-b");
+    server.registerMBean(new StandardMBean(pool, ConnectionPoolStatisticsMBean.class), ours);
+    server.registerMBean(new StandardMBean(new Pool(), ConnectionPoolStatisticsMBean.class), others);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.unregisterMBean(ours);
+    server.unregisterMBean(others);
+  }
+
+  @Test
+  public void testOnlyOwnPools() {
+    JsonObject pools = new PoolMonitor("test-a").sample();
+    assertEquals(1, pools.size());
+    assertNull(pools.getObject("db2:27017"));
+    JsonObject db1 = pools.getObject("db1:27017");
+    assertEquals(10, db1.getInteger("max_size").intValue());
+    assertEquals(3, db1.getInteger("available").intValue());
+  }
+
+  @Test
+  public void testPeaks() {
+    PoolMonitor monitor = new PoolMonitor("test-a");
+    pool.waitQueue = 4;
+    pool.checkedOut = 8;
+    monitor.sample();
+    pool.waitQueue = 0;
+    pool.checkedOut = 2;
+    JsonObject db1 = monitor.sample().getObject("db1:27017");
+    assertEquals(0, db1.getInteger("wait_queue").intValue());
+    assertEquals(4, db1.getInteger("peak_wait_queue").intValue());
+    assertEquals(8, db1.getInteger("peak_checked_out").intValue());
+    assertEquals(2, db1.getLong("samples").longValue());
+    assertEquals(1, db1.getLong("waiting_samples").longValue());
+  }
+
+  public static class Pool implements ConnectionPoolStatisticsMBean {
+    volatile int checkedOut = 7;
+    volatile int waitQueue;
+
+    @Override
+    public String getHost() {
+      return "db1";
+    }
+
+    @Override
+    public int getPort() {
+      return 27017;
+    }
+
+    @Override
+    public int getMinSize() {
+      return 0;
+    }
+
+    @Override
+    public int getMaxSize() {
+      return 10;
+    }
+
+    @Override
+    public int getSize() {
+      return 10;
+    }
+
+    @Override
+    public int getCheckedOutCount() {
+      return checkedOut;
+    }
+
+    @Override
+    public int getWaitQueueSize() {
+      return waitQueue;
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package org.vertx.mods.mongo.test.integration.java;
+/*
+ * Copyright 2013 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.mods.QueryShape;
+
+import static org.junit.Assert.assertEquals;
+
+public class QueryShapeTest {
+
+  @Test
+  public void testValuesAreReplaced() {
+    JsonObject first = new JsonObject("{\"age\": {\"$gt\": 30}, \"name\": \"tim\"}");
+    JsonObject second = new JsonObject("{\"name\": \"bob\", \"age\": {\"$gt\": 50}}");
+    assertEquals(QueryShape.normalise(first).encode(), QueryShape.normalise(second).encode());
+    assertEquals("{\"age\":{\"$gt\":\"?\"},\"name\":\"?\"}", QueryShape.normalise(first).encode());
+  }
+
+  @Test
+  public void testValuesWhichLookLikeOperators() {
+    JsonObject query = new JsonObject("{\"_id\": {\"$oid\": \"5441263be4b0b8bbcd37b4ab\"}, " +
+        "\"address\": {\"city\": \"London\"}, \"tags\": {\"$in\": [\"a\", \"b\"]}}");
+    assertEquals("{\"_id\":\"?\",\"address\":\"?\",\"tags\":{\"$in\":\"?\"}}", QueryShape.normalise(query).encode());
+  }
+
+  @Test
+  public void testLogicalOperators() {
+    JsonObject query = new JsonObject("{\"$or\": [{\"a\": 1}, {\"b\": {\"$elemMatch\": {\"c\": 2}}}]}");
+    assertEquals("{\"$or\":[{\"a\":\"?\"},{\"b\":{\"$elemMatch\":{\"c\":\"?\"}}}]}", QueryShape.normalise(query).encode());
+    assertEquals("{}", QueryShape.normalise(null).encode());
+  }
+}
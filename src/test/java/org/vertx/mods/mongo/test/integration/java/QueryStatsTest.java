@@ -0,0 +1,105 @@
+package org.vertx.mods.mongo.test.integration.java;
+/*
+ * Copyright 2013 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import com.mongodb.BasicDBObject;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.mods.MongoUtil;
+import org.vertx.mods.QueryStats;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class QueryStatsTest {
+
+  private final QueryStats stats = new QueryStats(new JsonObject());
+
+  @Test
+  public void testShapesAreCounted() {
+    stats.record("users", new JsonObject().putString("name", "tim"), null, 1000000);
+    stats.record("users", new JsonObject().putString("name", "bob"), null, 3000000);
+    stats.record("users", new JsonObject().putString("email", "bob@example.com"), null, 1000000);
+    JsonArray shapes = stats.getStats("users", 10);
+    assertEquals(2, shapes.size());
+    JsonObject first = shapes.get(0);
+    assertEquals(2, first.getLong("count").longValue());
+    assertEquals(2.0, first.getNumber("mean_ms").doubleValue(), 0.001);
+  }
+
+  @Test
+  public void testAdviceFollowsEqualitySortRange() {
+    JsonObject matcher = new JsonObject("{\"age\": {\"$gt\": 30}, \"country\": \"uk\"}");
+    stats.record("users", matcher, new JsonObject().putNumber("name", -1), 1000000);
+    JsonArray advice = stats.getAdvice(indexes("users", "{\"_id\": 1}"), 10);
+    assertEquals(1, advice.size());
+    JsonObject index = advice.get(0);
+    assertEquals("{\"country\":1,\"name\":-1,\"age\":1}", index.getObject("keys").encode());
+  }
+
+  @Test
+  public void testExistingIndexIsNotAdvised() {
+    stats.record("users", new JsonObject().putString("country", "uk").putString("city", "London"),
+        new JsonArray().addObject(new JsonObject().putNumber("age", 1)), 1000000);
+    stats.record("users", new JsonObject().putString("_id", "tim"), null, 1000000);
+    assertEquals(0, stats.getAdvice(indexes("users", "{\"_id\": 1}", "{\"country\": 1, \"city\": 1, \"age\": -1}"), 10).size());
+    assertEquals(1, stats.getAdvice(indexes("users", "{\"_id\": 1}", "{\"country\": 1, \"age\": 1}"), 10).size());
+  }
+
+  @Test
+  public void testPrefixesAreFolded() {
+    stats.record("users", new JsonObject().putString("country", "uk"), null, 1000000);
+    stats.record("users", new JsonObject().putString("country", "uk"),
+        new JsonObject().putNumber("name", 1), 5000000);
+    JsonArray advice = stats.getAdvice(indexes("users", "{\"_id\": 1}"), 10);
+    assertEquals(1, advice.size());
+    JsonObject index = advice.get(0);
+    assertEquals("{\"country\":1,\"name\":1}", index.getObject("keys").encode());
+    assertEquals(2, index.getLong("queries").longValue());
+  }
+
+  @Test
+  public void testIndexKeysKeepTheirOrder() {
+    // Converted the way the persistor converts the indexes it reads from MongoDB
+    JsonObject served = MongoUtil.convertIndexKeys(new BasicDBObject("key",
+        new BasicDBObject("zeta", 1).append("mid", 1).append("alpha", 1)));
+    JsonObject other = MongoUtil.convertIndexKeys(new BasicDBObject("key",
+        new BasicDBObject("alpha", 1).append("zeta", 1)));
+    Map<String, List<JsonObject>> indexes = Collections.singletonMap("users", Arrays.asList(served, other));
+
+    stats.record("users", new JsonObject().putString("zeta", "z").putString("mid", "m"),
+        new JsonObject().putNumber("alpha", 1), 1000000);
+    assertEquals(0, stats.getAdvice(indexes, 10).size());
+
+    // The index on alpha, zeta doesn't serve a query on zeta
+    QueryStats zetaStats = new QueryStats(new JsonObject());
+    zetaStats.record("users", new JsonObject().putString("zeta", "z"), null, 1000000);
+    assertEquals(1, zetaStats.getAdvice(Collections.singletonMap("users", Collections.singletonList(other)), 10).size());
+  }
+
+  private static Map<String, List<JsonObject>> indexes(String collection, String... keys) {
+    JsonObject[] indexes = new JsonObject[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      indexes[i] = new JsonObject(keys[i]);
+    }
+    return Collections.singletonMap(collection, Arrays.asList(indexes));
+  }
+}
@@ -0,0 +1,81 @@
+package org.vertx.mods.mongo.test.integration.java;
+/*
+ * Copyright 2013 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.bson.types.BSONTimestamp;
+import org.junit.Test;
+import org.vertx.mods.ReplicationTracker;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class ReplicationTrackerTest {
+
+  @Test
+  public void testOpTimeTokens() {
+    BSONTimestamp opTime = new BSONTimestamp(1413540000, 7);
+    assertEquals("1413540000:7", ReplicationTracker.encode(opTime));
+    assertEquals(opTime, ReplicationTracker.decode("1413540000:7"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidToken() {
+    ReplicationTracker.decode("1413540000");
+  }
+
+  @Test
+  public void testNothingIsReplicatedBeforeRefresh() {
+    assertFalse(new ReplicationTracker(null).isReplicated(new BSONTimestamp(1, 1)));
+  }
+
+  @Test
+  public void testHiddenAndDelayedMembersAreIgnored() {
+    BasicDBList configs = new BasicDBList();
+    configs.add(new BasicDBObject("_id", 0));
+    configs.add(new BasicDBObject("_id", 1));
+    configs.add(new BasicDBObject("_id", 2).append("hidden", true).append("priority", 0));
+    configs.add(new BasicDBObject("_id", 3).append("slaveDelay", 3600).append("priority", 0));
+    configs.add(new BasicDBObject("_id", 4).append("secondaryDelaySecs", 3600L).append("priority", 0));
+    configs.add(new BasicDBObject("_id", 5).append("slaveDelay", 0));
+    Set<Object> ignored = ReplicationTracker.getIgnoredMembers(new BasicDBObject("members", configs));
+    assertEquals(new HashSet<Object>(Arrays.asList(2, 3, 4)), ignored);
+
+    BasicDBList members = new BasicDBList();
+    members.add(member(0, "PRIMARY", new BSONTimestamp(100, 1)));
+    members.add(member(1, "SECONDARY", new BSONTimestamp(99, 1)));
+    members.add(member(2, "SECONDARY", new BSONTimestamp(50, 1)));
+    members.add(member(3, "SECONDARY", new BSONTimestamp(10, 1)));
+    members.add(member(4, "SECONDARY", null));
+    members.add(member(5, "SECONDARY", new BSONTimestamp(98, 3)));
+    DBObject status = new BasicDBObject("members", members);
+    assertEquals(new BSONTimestamp(98, 3), ReplicationTracker.getSecondariesOpTime(status, ignored));
+    // Without the config every secondary counts, and one which can't tell how far it is holds every read back
+    assertNull(ReplicationTracker.getSecondariesOpTime(status, Collections.emptySet()));
+  }
+
+  private static DBObject member(int id, String state, BSONTimestamp opTime) {
+    return new BasicDBObject("_id", id).append("stateStr", state).append("optime", opTime);
+  }
+}
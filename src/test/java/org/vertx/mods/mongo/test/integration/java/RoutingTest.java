@@ -0,0 +1,168 @@
+package org.vertx.mods.mongo.test.integration.java;
+/*
+ * Copyright 2013 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+public class RoutingTest extends PersistorTestParent {
+
+  private static final String EVENTS = "events";
+
+  @Override
+  protected JsonObject getConfig() {
+    JsonObject config = super.getConfig();
+    config.putObject("routing", new JsonObject()
+            .putObject(EVENTS, new JsonObject().putString("date_field", "ts")));
+    config.putObject("distinct_cache", new JsonObject());
+    return config;
+  }
+
+  @Test
+  public void testUpdateAndDelete() throws Exception {
+    JsonArray operations = new JsonArray();
+    String[] days = {"2014-10-16", "2014-10-17"};
+    for (String day : days) {
+      operations.addObject(new JsonObject()
+              .putString("action", "save")
+              .putString("collection", EVENTS)
+              .putObject("document", new JsonObject().putString("ts", day).putString("type", "routing-test")));
+    }
+    JsonObject batch = new JsonObject()
+            .putString("action", "batch")
+            .putArray("operations", operations);
+
+    eb.send(ADDRESS, batch, new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> reply) {
+        assertEquals("ok", reply.body().getString("status"));
+        JsonObject update = new JsonObject()
+                .putString("collection", EVENTS)
+                .putString("action", "update")
+                .putObject("criteria", new JsonObject().putString("type", "routing-test"))
+                .putObject("objNew", new JsonObject().putObject("$set", new JsonObject().putBoolean("seen", true)))
+                .putBoolean("multi", true);
+
+        eb.send(ADDRESS, update, new Handler<Message<JsonObject>>() {
+          public void handle(Message<JsonObject> reply) {
+            assertEquals("ok", reply.body().getString("status"));
+            assertEquals(2, reply.body().getNumber("number").intValue());
+            JsonObject delete = new JsonObject()
+                    .putString("collection", EVENTS)
+                    .putString("action", "delete")
+                    .putObject("matcher", new JsonObject().putBoolean("seen", true));
+
+            eb.send(ADDRESS, delete, new Handler<Message<JsonObject>>() {
+              public void handle(Message<JsonObject> reply) {
+                assertEquals("ok", reply.body().getString("status"));
+                assertEquals(2, reply.body().getNumber("number").intValue());
+                testComplete();
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+
+  @Test
+  public void testDistinct() throws Exception {
+    final JsonObject matcher = new JsonObject().putString("type", "distinct-test");
+    JsonObject delete = new JsonObject()
+            .putString("collection", EVENTS)
+            .putString("action", "delete")
+            .putObject("matcher", matcher);
+
+    eb.send(ADDRESS, delete, new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> reply) {
+        assertEquals("ok", reply.body().getString("status"));
+        JsonArray operations = new JsonArray()
+                .addObject(saveEvent("2014-10-16", "ch"))
+                .addObject(saveEvent("2014-10-17", "ch"))
+                .addObject(saveEvent("2014-10-17", "de"));
+        JsonObject batch = new JsonObject()
+                .putString("action", "batch")
+                .putArray("operations", operations);
+
+        eb.send(ADDRESS, batch, new Handler<Message<JsonObject>>() {
+          public void handle(Message<JsonObject> reply) {
+            assertEquals("ok", reply.body().getString("status"));
+            final JsonObject distinct = new JsonObject()
+                    .putString("collection", EVENTS)
+                    .putString("action", "distinct")
+                    .putString("key", "country")
+                    .putObject("matcher", matcher);
+
+            eb.send(ADDRESS, distinct, new Handler<Message<JsonObject>>() {
+              public void handle(Message<JsonObject> reply) {
+                assertEquals("ok", reply.body().getString("status"));
+                // ch is in both buckets but only returned once
+                assertEquals(2, reply.body().getArray("results").size());
+
+                eb.send(ADDRESS, saveEvent("2014-10-18", "fr"), new Handler<Message<JsonObject>>() {
+                  public void handle(Message<JsonObject> reply) {
+                    assertEquals("ok", reply.body().getString("status"));
+
+                    // The save went to a new bucket, and must still evict the values cached for the collection
+                    eb.send(ADDRESS, distinct, new Handler<Message<JsonObject>>() {
+                      public void handle(Message<JsonObject> reply) {
+                        assertEquals("ok", reply.body().getString("status"));
+                        assertEquals(3, reply.body().getArray("results").size());
+                        testComplete();
+                      }
+                    });
+                  }
+                });
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+
+  @Test
+  public void testUpsertIsRejected() throws Exception {
+    JsonObject update = new JsonObject()
+            .putString("collection", EVENTS)
+            .putString("action", "update")
+            .putObject("criteria", new JsonObject().putString("type", "routing-test"))
+            .putObject("objNew", new JsonObject().putObject("$set", new JsonObject().putBoolean("seen", true)))
+            .putBoolean("upsert", true);
+
+    eb.send(ADDRESS, update, new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> reply) {
+        assertEquals("error", reply.body().getString("status"));
+        testComplete();
+      }
+    });
+  }
+
+  private static JsonObject saveEvent(String day, String country) {
+    return new JsonObject()
+            .putString("action", "save")
+            .putString("collection", EVENTS)
+            .putObject("document", new JsonObject()
+                    .putString("ts", day)
+                    .putString("type", "distinct-test")
+                    .putString("country", country));
+  }
+}
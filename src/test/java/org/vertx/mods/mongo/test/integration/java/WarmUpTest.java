@@ -0,0 +1,97 @@
+package org.vertx.mods.mongo.test.integration.java;
+/*
+ * Copyright 2013 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.assertTrue;
+import static org.vertx.testtools.VertxAssert.fail;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+public class WarmUpTest extends PersistorTestParent {
+
+  private static final String WARM_ADDRESS = ADDRESS + ".warm";
+  private static final String READY_ADDRESS = WARM_ADDRESS + ".ready";
+
+  @Test
+  public void testReadyAfterWarmUp() throws Exception {
+    deleteAll(new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> reply) {
+        assertEquals("ok", reply.body().getString("status"));
+        saveAll(3);
+      }
+    });
+  }
+
+  private void saveAll(final int remaining) {
+    if (remaining == 0) {
+      deployWarmedUp();
+      return;
+    }
+    JsonObject save = new JsonObject()
+            .putString("collection", COLLECTION)
+            .putString("action", "save")
+            .putObject("document", new JsonObject().putNumber("n", remaining));
+
+    eb.send(ADDRESS, save, new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> reply) {
+        assertEquals("ok", reply.body().getString("status"));
+        saveAll(remaining - 1);
+      }
+    });
+  }
+
+  /**
+   * Deploys a second instance which warms up with a find that has more results than fit in one batch
+   */
+  private void deployWarmedUp() {
+    eb.registerHandler(READY_ADDRESS, new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> ready) {
+        assertEquals(WARM_ADDRESS, ready.body().getString("address"));
+        assertTrue(ready.body().getNumber("connections").intValue() > 0);
+        assertEquals(10, ready.body().getNumber("queries").intValue());
+        assertEquals(0, ready.body().getNumber("failed").intValue());
+        testComplete();
+      }
+    });
+    JsonObject find = new JsonObject()
+            .putString("collection", COLLECTION)
+            .putString("action", "find")
+            .putObject("matcher", new JsonObject())
+            .putNumber("batch_size", 2);
+    JsonObject config = getConfig()
+            .putString("address", WARM_ADDRESS)
+            .putNumber("pool_size", 2)
+            .putObject("warm_up", new JsonObject()
+                    .putArray("queries", new JsonArray().addObject(find))
+                    .putNumber("iterations", 10)
+                    .putString("ready_address", READY_ADDRESS));
+    container.deployModule(System.getProperty("vertx.modulename"), config, 1, new AsyncResultHandler<String>() {
+      public void handle(AsyncResult<String> result) {
+        if (result.failed()) {
+          fail(result.cause().getMessage());
+        }
+      }
+    });
+  }
+}
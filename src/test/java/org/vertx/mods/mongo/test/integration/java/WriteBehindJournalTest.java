@@ -0,0 +1,128 @@
+package org.vertx.mods.mongo.test.integration.java;
+/*
+ * Copyright 2013 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.mods.WriteBehindJournal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WriteBehindJournalTest {
+
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    file = File.createTempFile("journal", ".dat");
+    file.delete();
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void testUnappliedRecordsAreReplayedAfterReopen() throws Exception {
+    WriteBehindJournal journal = new WriteBehindJournal(file, 4096, false);
+    assertTrue(journal.append(entry(1)));
+    assertTrue(journal.append(entry(2)));
+    assertTrue(journal.append(entry(3)));
+    WriteBehindJournal.Batch batch = journal.read(1);
+    journal.commit(batch);
+    journal.close();
+
+    journal = new WriteBehindJournal(file, 4096, false);
+    List<JsonObject> entries = journal.read(10).getEntries();
+    assertEquals(2, entries.size());
+    assertEquals(2, entries.get(0).getInteger("n").intValue());
+    assertEquals(3, entries.get(1).getInteger("n").intValue());
+    journal.close();
+  }
+
+  @Test
+  public void testTornRecordIsDropped() throws Exception {
+    WriteBehindJournal journal = new WriteBehindJournal(file, 4096, false);
+    journal.append(entry(1));
+    journal.append(entry(2));
+    journal.close();
+
+    // Corrupt the content of the second record
+    int firstRecordSize = 8 + entry(1).encode().length();
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.seek(16 + firstRecordSize + 10);
+      raf.write('x');
+    }
+
+    journal = new WriteBehindJournal(file, 4096, false);
+    assertEquals(1, journal.read(10).getEntries().size());
+    journal.close();
+  }
+
+  @Test
+  public void testWrapsAroundOnceRecordsAreApplied() throws Exception {
+    WriteBehindJournal journal = new WriteBehindJournal(file, 256, false);
+    int n = 0;
+    while (journal.append(entry(n))) {
+      n++;
+    }
+    assertTrue(n > 2);
+    // Apply the first two, which makes room at the start of the file
+    journal.commit(journal.read(2));
+    assertTrue(journal.append(entry(n)));
+
+    journal.close();
+    journal = new WriteBehindJournal(file, 256, false);
+    List<JsonObject> entries = journal.read(100).getEntries();
+    assertEquals(n - 1, entries.size());
+    assertEquals(2, entries.get(0).getInteger("n").intValue());
+    assertEquals(n, entries.get(entries.size() - 1).getInteger("n").intValue());
+
+    journal.commit(journal.read(100));
+    assertTrue(journal.isEmpty());
+    assertFalse(journal.read(100).getEntries().size() > 0);
+    journal.close();
+  }
+
+  @Test
+  public void testJournalInUseIsRefused() throws Exception {
+    WriteBehindJournal journal = new WriteBehindJournal(file, 4096, false);
+    try {
+      new WriteBehindJournal(file, 4096, false);
+      fail("A journal can only be opened once");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("in use"));
+    }
+    journal.close();
+    new WriteBehindJournal(file, 4096, false).close();
+  }
+
+  private static JsonObject entry(int n) {
+    return new JsonObject().putString("collection", "events").putNumber("n", n)
+        .putObject("document", new JsonObject().putString("_id", "id" + n));
+  }
+}
@@ -0,0 +1,143 @@
+package org.vertx.mods.mongo.test.integration.java;
+/*
+ * Copyright 2013 Red Hat, Inc.
+ *
+ * Red Hat licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.File;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+public class WriteBehindTest extends PersistorTestParent {
+
+  private static final String USERS = "write_behind_users";
+  private static final String DEAD_LETTERS = "write_behind_users_rejected";
+
+  @Override
+  protected JsonObject getConfig() {
+    JsonObject config = super.getConfig();
+    File journal = new File(System.getProperty("java.io.tmpdir"), "write-behind-test-" + System.nanoTime() + ".journal");
+    journal.deleteOnExit();
+    config.putObject("write_behind", new JsonObject()
+            .putArray("collections", new JsonArray().addString(USERS))
+            .putString("journal_file", journal.getPath())
+            .putNumber("journal_size", 1024 * 1024)
+            .putNumber("drain_interval", 20)
+            .putString("dead_letter_collection", DEAD_LETTERS));
+    return config;
+  }
+
+  @Test
+  public void testRejectedSaveIsDeadLettered() throws Exception {
+    JsonArray operations = new JsonArray()
+            .addObject(new JsonObject().putString("action", "drop_collection").putString("collection", USERS))
+            .addObject(new JsonObject().putString("action", "drop_collection").putString("collection", DEAD_LETTERS))
+            .addObject(new JsonObject()
+                    .putString("action", "ensure_index")
+                    .putString("collection", USERS)
+                    .putObject("keys", new JsonObject().putNumber("email", 1))
+                    .putBoolean("unique", true)
+                    .putBoolean("background", false));
+    String[][] users = {{"tim", "tim@example.com"}, {"tom", "tim@example.com"}, {"bob", "bob@example.com"}};
+    for (String[] user : users) {
+      operations.addObject(new JsonObject()
+              .putString("action", "save")
+              .putString("collection", USERS)
+              .putObject("document", new JsonObject().putString("_id", user[0]).putString("email", user[1])));
+    }
+    JsonObject batch = new JsonObject()
+            .putString("action", "batch")
+            .putArray("operations", operations);
+
+    eb.send(ADDRESS, batch, new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> reply) {
+        assertEquals("ok", reply.body().getString("status"));
+        final JsonObject countSaved = new JsonObject()
+                .putString("action", "count")
+                .putString("collection", USERS);
+
+        vertx.setPeriodic(50, new Handler<Long>() {
+          public void handle(final Long timerID) {
+            eb.send(ADDRESS, countSaved, new Handler<Message<JsonObject>>() {
+              public void handle(Message<JsonObject> reply) {
+                // The save after the rejected one isn't held up by it
+                if (reply.body().getNumber("count").intValue() < 2) {
+                  return;
+                }
+                vertx.cancelTimer(timerID);
+                JsonObject countRejected = new JsonObject()
+                        .putString("action", "count")
+                        .putString("collection", DEAD_LETTERS);
+
+                eb.send(ADDRESS, countRejected, new Handler<Message<JsonObject>>() {
+                  public void handle(Message<JsonObject> reply) {
+                    assertEquals(1, reply.body().getNumber("count").intValue());
+                    testComplete();
+                  }
+                });
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+
+  @Test
+  public void testDeleteComesAfterEarlierSave() throws Exception {
+    JsonObject matcher = new JsonObject().putString("_id", "ann");
+    JsonArray operations = new JsonArray()
+            .addObject(new JsonObject()
+                    .putString("action", "save")
+                    .putString("collection", USERS)
+                    .putObject("document", new JsonObject().putString("_id", "ann").putString("email", "ann@example.com")))
+            .addObject(new JsonObject()
+                    .putString("action", "delete")
+                    .putString("collection", USERS)
+                    .putObject("matcher", matcher));
+    JsonObject batch = new JsonObject()
+            .putString("action", "batch")
+            .putArray("operations", operations);
+    final JsonObject count = new JsonObject()
+            .putString("action", "count")
+            .putString("collection", USERS)
+            .putObject("matcher", matcher);
+
+    eb.send(ADDRESS, batch, new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> reply) {
+        assertEquals("ok", reply.body().getString("status"));
+        JsonObject delete = reply.body().getArray("results").get(1);
+        assertEquals(1, delete.getNumber("number").intValue());
+        // Give the drainer a few rounds, in which the save must not come back
+        vertx.setTimer(200, new Handler<Long>() {
+          public void handle(Long timerID) {
+            eb.send(ADDRESS, count, new Handler<Message<JsonObject>>() {
+              public void handle(Message<JsonObject> reply) {
+                assertEquals(0, reply.body().getNumber("count").intValue());
+                testComplete();
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+}